@@ -0,0 +1,37 @@
+package benchmark;
+
+import common.Hasher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of placing one key on the ring with each Hasher mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HasherBenchmark {
+
+    @Param({"SHA1_HEX", "SHA1", "MURMUR3"})
+    public Hasher.Mode mode;
+
+    private Hasher hasher;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        hasher = new Hasher(1 << 13, mode);
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "movie/spiderman" + i + ".mp4";
+        }
+    }
+
+    @Benchmark
+    public int hash() {
+        next = (next + 1) & (keys.length - 1);
+        return hasher.hash(keys[next]);
+    }
+}
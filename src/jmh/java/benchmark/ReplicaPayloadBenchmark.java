@@ -0,0 +1,106 @@
+package benchmark;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import common.JsonUtil;
+import net.grpc.chord.AddMultipleScatteredReplicaRequest;
+import net.grpc.chord.Identifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes a replica payload the old way (Gson JSON wrapped in a proto string field)
+ * and the new way (native proto map field of bytes).
+ *
+ * Both sides carry the whole AddMultipleScatteredReplicaRequest with the sender's Identifier. The old
+ * message had the JSON in field 1, which is now reserved, so it is written and read field by field
+ * with the same wire format the generated code used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplicaPayloadBenchmark {
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    @Param({"64"})
+    public int valueSize;
+
+    private Map<String, String> data;
+    private Map<String, ByteString> nativeData;
+    private Identifier identifier;
+    private byte[] jsonPayload;
+    private byte[] nativePayload;
+
+    @Setup
+    public void setUp() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueSize; i++) value.append((char) ('a' + i % 26));
+
+        data = new HashMap<>();
+        nativeData = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            data.put("key" + i, value.toString());
+            nativeData.put("key" + i, ByteString.copyFromUtf8(value.toString()));
+        }
+        identifier = Identifier.newBuilder().setID(42).setIP("localhost").setPort(9700).build();
+        try {
+            jsonPayload = jsonEncode();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        nativePayload = nativeEncode();
+    }
+
+    //    message AddMultipleScatteredReplicaRequest { string jsonData = 1; Identifier identifier = 2; }
+    @Benchmark
+    public byte[] jsonEncode() throws IOException {
+        String dataJson = JsonUtil.serilizable(data);
+        byte[] payload = new byte[CodedOutputStream.computeStringSize(1, dataJson) + CodedOutputStream.computeMessageSize(2, identifier)];
+        CodedOutputStream out = CodedOutputStream.newInstance(payload);
+        out.writeString(1, dataJson);
+        out.writeMessage(2, identifier);
+        out.checkNoSpaceLeft();
+        return payload;
+    }
+
+    @Benchmark
+    public byte[] nativeEncode() {
+        return AddMultipleScatteredReplicaRequest.newBuilder().setIdentifier(identifier).putAllData(nativeData).build().toByteArray();
+    }
+
+    @Benchmark
+    public Map<String, String> jsonDecode() throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(jsonPayload);
+        String dataJson = "";
+        Identifier sender = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1:
+                    dataJson = in.readStringRequireUtf8();
+                    break;
+                case 2:
+                    sender = in.readMessage(Identifier.parser(), null);
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        if (sender == null) throw new InvalidProtocolBufferException("identifier missing");
+        return JsonUtil.deserilizable(dataJson);
+    }
+
+    @Benchmark
+    public Map<String, ByteString> nativeDecode() throws InvalidProtocolBufferException {
+        return AddMultipleScatteredReplicaRequest.parseFrom(nativePayload).getDataMap();
+    }
+}
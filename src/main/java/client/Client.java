@@ -1,23 +1,67 @@
 package client;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
 import common.Hasher;
 import common.IdentifierWithHop;
 import common.JsonUtil;
-import net.grpc.chord.Identifier;
+import net.grpc.chord.*;
 import node.ChordNodeClient;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Random;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Client {
 
+    private static final Logger logger = Logger.getLogger(Client.class.getName());
+
     private String[] addressList = {"localhost:9700"};//, "127.0.0.1:9704", "127.0.0.1:9708", "127.0.0.1:9712", "127.0.0.1:9716", "127.0.0.1:9720", "127.0.0.1:9724", "127.0.0.1:9728"};
     private int ringSizeExp=5;
     private Hasher hasher = new Hasher(1 << ringSizeExp);
+    private RingRoutingCache routingCache = new RingRoutingCache(1 << ringSizeExp);
+    //    hedged reads: a get the owner has not answered within the hedge delay is also sent to its first successor
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 1;
+    private static final long HEDGED_GET_TIMEOUT_MILLIS = 10000;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private volatile boolean hedgedReads = false;
+    private volatile double hedgePercentile = 95;
+    private final LatencyTracker getLatency = new LatencyTracker(1024);
+
+    public Client() {
+    }
+
+    public Client(String[] addressList, int ringSizeExp) {
+        this.addressList = addressList;
+        this.ringSizeExp = ringSizeExp;
+        this.hasher = new Hasher(1 << ringSizeExp);
+        this.routingCache = new RingRoutingCache(1 << ringSizeExp);
+    }
+
+    //    reads may then be answered from a replica, which can lag behind the owner for a moment
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    //    how long to wait for the owner before hedging, the chosen percentile of recent owner latencies
+    public long hedgeDelayMillis() {
+        if (getLatency.count() < MIN_LATENCY_SAMPLES) return DEFAULT_HEDGE_DELAY_MILLIS;
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, TimeUnit.NANOSECONDS.toMillis(getLatency.percentile(hedgePercentile)));
+    }
 
     private String chooseRandomAddress(){
         Random rand = new Random();
@@ -34,7 +78,10 @@ public class Client {
     }
 
     private Identifier findSuccessor(String key) {
-        int keyID = hasher.hash(key);
+        return findSuccessor(hasher.hash(key));
+    }
+
+    private Identifier findSuccessor(int keyID) {
         Identifier successor;
         while(true){
             ChordNodeClient knownClient = newClientToRandomAddress();
@@ -46,9 +93,33 @@ public class Client {
                 knownClient.close();
             }
         }
+        learnRoute(keyID, successor);
         return successor;
     }
 
+    //    remember who owns keyID, and the exact ranges of the nodes following it
+    private void learnRoute(int keyID, Identifier owner) {
+        if (owner.getID() == -1) return;
+        routingCache.learnOwner(keyID, owner);
+        ChordNodeClient ownerClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+        routingCache.learnSuccessors(owner, ownerClient.inquireSuccessorsList());
+        ownerClient.close();
+    }
+
+    private Identifier findOwner(int keyID) {
+        Identifier cached = routingCache.lookup(keyID);
+        return cached != null ? cached : findSuccessor(keyID);
+    }
+
+    //    the owner of key followed by up to replicas successors, which hold its replicas
+    public List<Identifier> holders(String key, int replicas) {
+        Identifier owner = findOwner(hasher.hash(key));
+        List<Identifier> holders = new ArrayList<>();
+        holders.add(owner);
+        holders.addAll(routingCache.successors(owner, replicas));
+        return holders;
+    }
+
     private IdentifierWithHop findSuccessorWithHop(String key) {
         int keyID = hasher.hash(key);
         IdentifierWithHop successorWithHop;
@@ -66,9 +137,10 @@ public class Client {
     }
 
 
-    private boolean put(String key, String value){
+    public boolean put(String key, ByteString value){
+        int keyID = hasher.hash(key);
         while (true){
-            Identifier successor = findSuccessor(key);
+            Identifier successor = findOwner(keyID);
 
             ChordNodeClient destClient = new ChordNodeClient(successor.getIP(), successor.getPort());
 
@@ -77,19 +149,214 @@ public class Client {
                 break;
             }
             destClient.close();
+//            the node refused the key, so our view of its range is stale
+            routingCache.invalidate(successor);
         }
 
         return true;
     }
 
-    private String get(String key) {
-        Identifier successor = findSuccessor(key);
-        ChordNodeClient destClient = new ChordNodeClient(successor.getIP(), successor.getPort());
-        String response = destClient.get(key);
+    public ByteString get(String key) {
+        if (hedgedReads) {
+            GetResponse answer = hedgedGet(key);
+            if (answer != null) return valueOf(answer);
+        }
+        return valueOf(getWithStatus(key));
+    }
+
+    //    the owner's answer, FAILURE for a missing key; null or NOT_OWNER when the owner could not be reached
+    //    or refused the key even after asking the ring for it
+    public GetResponse getWithStatus(String key) {
+        int keyID = hasher.hash(key);
+        Identifier cached = routingCache.lookup(keyID);
+        if (cached != null) {
+            GetResponse response = getFrom(cached, key);
+//            a missing key is an answer, only a refusal or a dead node means the route is stale
+            if (!isStaleRoute(response)) return response;
+            routingCache.invalidate(cached);
+        }
+
+        Identifier successor = findSuccessor(keyID);
+        return getFrom(successor, key);
+    }
+
+    //    the value, or FAILURE when the owner said the key is absent; null when the owner refused the key
+    //    or could not be reached and no replica had it, the caller then takes the normal path
+    private GetResponse hedgedGet(String key) {
+        Identifier owner = findOwner(hasher.hash(key));
+        List<Identifier> successors = routingCache.successors(owner, 1);
+        BlockingQueue<HedgedAnswer> answers = new LinkedBlockingQueue<>();
+        List<ChordNodeClient> clients = new ArrayList<>();
+        try {
+            ChordNodeClient ownerClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+            clients.add(ownerClient);
+            long start = System.nanoTime();
+            ListenableFuture<GetResponse> fromOwner = ownerClient.getFuture(key, false);
+            fromOwner.addListener(() -> {
+                HedgedAnswer answer = new HedgedAnswer(true, answerOf(fromOwner));
+//                quick refusals and misses would pull the hedge delay below real read latency
+                if (answer.isValue()) getLatency.record(System.nanoTime() - start);
+                answers.add(answer);
+            }, MoreExecutors.directExecutor());
+
+            int outstanding = 1;
+            HedgedAnswer answer = answers.poll(hedgeDelayMillis(), TimeUnit.MILLISECONDS);
+            if (answer != null) {
+//                the owner answered in time, nothing to hedge
+                return answer.isStaleRoute() ? null : answer.response;
+            }
+            if (!successors.isEmpty()) {
+                Identifier successor = successors.get(0);
+                ChordNodeClient successorClient = new ChordNodeClient(successor.getIP(), successor.getPort());
+                clients.add(successorClient);
+                ListenableFuture<GetResponse> fromReplica = successorClient.getFuture(key, true);
+                fromReplica.addListener(() -> answers.add(new HedgedAnswer(false, answerOf(fromReplica))), MoreExecutors.directExecutor());
+                outstanding++;
+            }
+
+//            first value wins, a miss is final only when the owner reports it
+            for (; outstanding > 0; outstanding--) {
+                answer = answers.poll(HEDGED_GET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (answer == null) break;
+                if (answer.isValue() || (answer.fromOwner && !answer.isStaleRoute())) return answer.response;
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for (ChordNodeClient client : clients) client.close();
+        }
+    }
+
+    //    null when the RPC failed
+    private static GetResponse answerOf(ListenableFuture<GetResponse> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static class HedgedAnswer {
+        private final boolean fromOwner;
+        private final GetResponse response;
+
+        HedgedAnswer(boolean fromOwner, GetResponse response) {
+            this.fromOwner = fromOwner;
+            this.response = response;
+        }
+
+        boolean isValue() {
+            return response != null && response.getRet() == ReturnCode.SUCCESS;
+        }
+
+        boolean isStaleRoute() {
+            return Client.isStaleRoute(response);
+        }
+    }
+
+    //    group keys by owning node and send one batch per owner, all owners in parallel
+    public Map<String, Boolean> multiPut(Map<String, ByteString> entries) {
+        Map<Identifier, List<KeyValue>> groups = new HashMap<>();
+        for (Map.Entry<String, ByteString> entry : entries.entrySet()) {
+            Identifier owner = findOwner(hasher.hash(entry.getKey()));
+            KeyValue keyValue = KeyValue.newBuilder().setKey(entry.getKey()).setValue(entry.getValue()).build();
+            groups.computeIfAbsent(owner, k -> new ArrayList<>()).add(keyValue);
+        }
+
+        Map<Identifier, ChordNodeClient> clients = new HashMap<>();
+        Map<Identifier, ListenableFuture<MultiPutResponse>> futures = new HashMap<>();
+        for (Map.Entry<Identifier, List<KeyValue>> group : groups.entrySet()) {
+            Identifier owner = group.getKey();
+            ChordNodeClient ownerClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+            clients.put(owner, ownerClient);
+            futures.put(owner, ownerClient.multiPutFuture(group.getValue()));
+        }
+
+        Map<String, Boolean> results = new HashMap<>();
+        for (Map.Entry<Identifier, List<KeyValue>> group : groups.entrySet()) {
+            Identifier owner = group.getKey();
+            List<KeyValue> batch = group.getValue();
+            MultiPutResponse response = await(futures.get(owner));
+            clients.get(owner).close();
+
+            for (int i = 0; i < batch.size(); i++) {
+                KeyValue keyValue = batch.get(i);
+                if (response != null && i < response.getRetCount() && response.getRet(i) == ReturnCode.SUCCESS) {
+                    results.put(keyValue.getKey(), true);
+                } else {
+//                    refused or lost, repair the route and fall back to the single key path
+                    routingCache.invalidate(owner);
+                    results.put(keyValue.getKey(), put(keyValue.getKey(), keyValue.getValue()));
+                }
+            }
+        }
+        return results;
+    }
+
+    public Map<String, ByteString> multiGet(Collection<String> keys) {
+        Map<Identifier, List<String>> groups = new HashMap<>();
+        for (String key : keys) {
+            Identifier owner = findOwner(hasher.hash(key));
+            groups.computeIfAbsent(owner, k -> new ArrayList<>()).add(key);
+        }
+
+        Map<Identifier, ChordNodeClient> clients = new HashMap<>();
+        Map<Identifier, ListenableFuture<MultiGetResponse>> futures = new HashMap<>();
+        for (Map.Entry<Identifier, List<String>> group : groups.entrySet()) {
+            Identifier owner = group.getKey();
+            ChordNodeClient ownerClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+            clients.put(owner, ownerClient);
+            futures.put(owner, ownerClient.multiGetFuture(group.getValue()));
+        }
+
+        Map<String, ByteString> results = new HashMap<>();
+        for (Map.Entry<Identifier, List<String>> group : groups.entrySet()) {
+            Identifier owner = group.getKey();
+            List<String> batch = group.getValue();
+            MultiGetResponse response = await(futures.get(owner));
+            clients.get(owner).close();
+
+            for (int i = 0; i < batch.size(); i++) {
+                String key = batch.get(i);
+                GetResponse result = response != null && i < response.getResultsCount() ? response.getResults(i) : null;
+                if (!isStaleRoute(result)) {
+//                    FAILURE from the owner means the key is absent
+                    results.put(key, valueOf(result));
+                } else {
+                    routingCache.invalidate(owner);
+                    results.put(key, valueOf(getFrom(findSuccessor(hasher.hash(key)), key)));
+                }
+            }
+        }
+        return results;
+    }
+
+    private <T> T await(ListenableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.log(Level.WARNING, "Batch RPC failed: {0}", e.getMessage());
+            return null;
+        }
+    }
+
+    private GetResponse getFrom(Identifier node, String key) {
+        ChordNodeClient destClient = new ChordNodeClient(node.getIP(), node.getPort());
+        GetResponse response = destClient.getWithStatus(key);
         destClient.close();
         return response;
     }
 
+    private static boolean isStaleRoute(GetResponse response) {
+        return response == null || response.getRet() == ReturnCode.NOT_OWNER;
+    }
+
+    private static ByteString valueOf(GetResponse response) {
+        return response != null && response.getRet() == ReturnCode.SUCCESS ? response.getValue() : null;
+    }
+
 
     public static void main(String[] args){
         Client client = new Client();
@@ -100,12 +367,12 @@ public class Client {
                 String[] ops = lineInput.toString().split(" ");
                 if(ops[0].equals("get") && ops.length == 2){
                     String key = ops[1];
-                    String res = client.get(key);
-                    System.out.println("Get result: " + res);
+                    ByteString res = client.get(key);
+                    System.out.println("Get result: " + (res == null ? null : res.toStringUtf8()));
                 }else if(ops[0].equals("put") && ops.length == 3){
                     String key = ops[1];
                     String value = ops[2];
-                    boolean res = client.put(key, value);
+                    boolean res = client.put(key, ByteString.copyFromUtf8(value));
                     if(res){
                         System.out.printf("Put key:%s, value:%s Succeeded: \n", key, value);
                     }else{
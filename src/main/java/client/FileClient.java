@@ -0,0 +1,297 @@
+package client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import manager.ChordManagerClient;
+import net.grpc.chord.FileManifest;
+import net.grpc.chord.GetResponse;
+import net.grpc.chord.Identifier;
+import net.grpc.chord.ReturnCode;
+import node.ChordNodeClient;
+import node.ChordNodeService;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Stores files in the ring as fixed-size chunks.
+ *
+ * Every chunk is stored under the SHA-1 of its content, so the chunks of one file spread over the
+ * ring and identical chunks are stored once. A {@link FileManifest} listing the chunk keys is
+ * stored under the file key, and the manager maps the file path to that key. Chunks move to and
+ * from their owners in parallel, with a bounded number in flight.
+ *
+ * Downloads are striped: every chunk is cut into ranges that are read at the same time from the
+ * chunk's owner and the successors holding its replicas, so a large file is read from many nodes
+ * at once. Chunks are prefetched ahead of the reader and handed out in file order.
+ */
+public class FileClient implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FileClient.class.getName());
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    private static final int DEFAULT_PARALLELISM = 8;
+    private static final int DEFAULT_STRIPE_SIZE = 256 << 10;
+    //    besides the owner, the successors in its successor list hold a replica of every chunk
+    private static final int REPLICA_SUCCESSORS = ChordNodeService.sucListSize;
+
+    private final Client ringClient;
+    private final String managerHost;
+    private final int managerPort;
+    private final int chunkSize;
+    private final int parallelism;
+    private volatile int stripeSize = DEFAULT_STRIPE_SIZE;
+    private final ExecutorService executor;
+
+    public FileClient(String[] addressList, int ringSizeExp, String managerHost, int managerPort) {
+        this(new Client(addressList, ringSizeExp), managerHost, managerPort, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public FileClient(Client ringClient, String managerHost, int managerPort, int chunkSize, int parallelism) {
+        this.ringClient = ringClient;
+        this.managerHost = managerHost;
+        this.managerPort = managerPort;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "file-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setStripeSize(int stripeSize) {
+        this.stripeSize = stripeSize;
+    }
+
+    public String upload(String absPath, ByteString content) throws IOException {
+        return upload(absPath, content.newInput());
+    }
+
+    //    stores the content and links absPath to it, returns the file key
+    public String upload(String absPath, InputStream content) throws IOException {
+        FileManifest.Builder manifest = FileManifest.newBuilder().setChunkSize(chunkSize);
+        Deque<Future<Boolean>> inFlight = new ArrayDeque<>();
+        Set<String> uploaded = new HashSet<>();
+        long size = 0;
+
+        ByteString chunk;
+        while (!(chunk = readChunk(content)).isEmpty()) {
+            String chunkKey = DigestUtils.sha1Hex(chunk.toByteArray());
+            manifest.addChunkKeys(chunkKey);
+            size += chunk.size();
+            if (!uploaded.add(chunkKey)) continue;
+
+//            keep memory bounded by the chunks in flight, not by the file size
+            if (inFlight.size() >= 2 * parallelism) {
+                awaitPut(inFlight.poll());
+            }
+            final ByteString value = chunk;
+            inFlight.add(executor.submit(() -> ringClient.put(chunkKey, value)));
+        }
+        while (!inFlight.isEmpty()) {
+            awaitPut(inFlight.poll());
+        }
+
+        ByteString manifestBytes = manifest.setSize(size).build().toByteString();
+        String fileKey = DigestUtils.sha1Hex(manifestBytes.toByteArray());
+        if (!ringClient.put(fileKey, manifestBytes)) {
+            throw new IOException("Storing the manifest of " + absPath + " failed");
+        }
+        if (!linkFile(absPath, fileKey)) {
+            throw new IOException("Registering " + absPath + " with the manager failed");
+        }
+        logger.info(String.format("Uploaded %s: %d bytes in %d chunks", absPath, size, manifest.getChunkKeysCount()));
+        return fileKey;
+    }
+
+    public ByteString download(String absPath) throws IOException {
+        ByteString.Output out = ByteString.newOutput();
+        download(absPath, out);
+        return out.toByteString();
+    }
+
+    public void download(String absPath, OutputStream out) throws IOException {
+        try (InputStream in = openStream(absPath)) {
+            byte[] buffer = new byte[64 << 10];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    //    reads the file in order while later chunks are already being fetched
+    public InputStream openStream(String absPath) throws IOException {
+        return new ChunkStream(readManifest(absPath));
+    }
+
+    public FileManifest readManifest(String absPath) throws IOException {
+        String fileKey = lookupFileKey(absPath);
+        if (fileKey == null || fileKey.isEmpty()) {
+            throw new FileNotFoundException(absPath);
+        }
+        ByteString manifestBytes = ringClient.get(fileKey);
+        if (manifestBytes == null) {
+            throw new IOException("Manifest " + fileKey + " of " + absPath + " is missing");
+        }
+        try {
+            return FileManifest.parseFrom(manifestBytes);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IOException("Manifest " + fileKey + " of " + absPath + " is corrupt", e);
+        }
+    }
+
+    //    points absPath at fileKey in the manager's namespace
+    protected boolean linkFile(String absPath, String fileKey) {
+        ChordManagerClient managerClient = new ChordManagerClient(managerHost, managerPort);
+        boolean linked = managerClient.writeFileKey(absPath, fileKey);
+        managerClient.close();
+        return linked;
+    }
+
+    //    empty or null when the manager knows no such file
+    protected String lookupFileKey(String absPath) {
+        ChordManagerClient managerClient = new ChordManagerClient(managerHost, managerPort);
+        String fileKey = managerClient.readFileKey(absPath);
+        managerClient.close();
+        return fileKey;
+    }
+
+    //    reads the stripes of one chunk from its holders at once, falls back to a plain get from the owner
+    private ByteString fetchChunk(String chunkKey, int length, int chunkIndex) throws IOException {
+        List<Identifier> holders = ringClient.holders(chunkKey, REPLICA_SUCCESSORS);
+        int stripes = (length + stripeSize - 1) / stripeSize;
+        if (stripes > 1 && holders.size() > 1) {
+            ByteString striped = fetchStripes(chunkKey, stripes, holders, chunkIndex);
+            if (striped != null && DigestUtils.sha1Hex(striped.toByteArray()).equals(chunkKey)) {
+                return striped;
+            }
+            logger.warning("Striped read of chunk " + chunkKey + " failed, reading it from the owner");
+        }
+
+        ByteString chunk = ringClient.get(chunkKey);
+        if (chunk == null) {
+            throw new IOException("Chunk " + chunkKey + " is missing");
+        }
+        if (!DigestUtils.sha1Hex(chunk.toByteArray()).equals(chunkKey)) {
+            throw new IOException("Chunk " + chunkKey + " is corrupt");
+        }
+        return chunk;
+    }
+
+    private ByteString fetchStripes(String chunkKey, int stripes, List<Identifier> holders, int chunkIndex) {
+        List<ChordNodeClient> clients = new ArrayList<>();
+        List<ListenableFuture<GetResponse>> parts = new ArrayList<>();
+        try {
+            for (int i = 0; i < stripes; i++) {
+//                rotate by chunk so consecutive chunks start on different nodes
+                Identifier holder = holders.get((chunkIndex + i) % holders.size());
+                ChordNodeClient client = new ChordNodeClient(holder.getIP(), holder.getPort());
+                clients.add(client);
+                parts.add(client.getRangeFuture(chunkKey, (long) i * stripeSize, stripeSize, true));
+            }
+            ByteString chunk = ByteString.EMPTY;
+            for (ListenableFuture<GetResponse> part : parts) {
+                GetResponse response = part.get();
+                if (response.getRet() != ReturnCode.SUCCESS) return null;
+                chunk = chunk.concat(response.getValue());
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } finally {
+            for (ChordNodeClient client : clients) client.close();
+        }
+    }
+
+    private ByteString readChunk(InputStream content) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        int filled = 0;
+        int read;
+        while (filled < chunkSize && (read = content.read(buffer, filled, chunkSize - filled)) != -1) {
+            filled += read;
+        }
+        return UnsafeByteOperations.unsafeWrap(buffer, 0, filled);
+    }
+
+    private static void awaitPut(Future<Boolean> put) throws IOException {
+        if (!await(put)) {
+            throw new IOException("Storing a chunk failed");
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private class ChunkStream extends InputStream {
+        private final FileManifest manifest;
+        private final Deque<Future<ByteString>> prefetched = new ArrayDeque<>();
+        private int nextToFetch;
+        private InputStream current = new ByteArrayInputStream(new byte[0]);
+
+        ChunkStream(FileManifest manifest) {
+            this.manifest = manifest;
+            prefetch();
+        }
+
+        private void prefetch() {
+            while (nextToFetch < manifest.getChunkKeysCount() && prefetched.size() < 2 * parallelism) {
+                int chunkIndex = nextToFetch++;
+                String chunkKey = manifest.getChunkKeys(chunkIndex);
+                long remaining = manifest.getSize() - (long) chunkIndex * manifest.getChunkSize();
+                int length = (int) Math.min(manifest.getChunkSize(), remaining);
+                prefetched.add(executor.submit(() -> fetchChunk(chunkKey, length, chunkIndex)));
+            }
+        }
+
+        //        false at the end of the file
+        private boolean advance() throws IOException {
+            while (current.available() == 0) {
+                if (prefetched.isEmpty()) return false;
+                current = await(prefetched.poll()).newInput();
+                prefetch();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return advance() ? current.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            return advance() ? current.read(buffer, offset, length) : -1;
+        }
+
+        @Override
+        public void close() {
+            for (Future<ByteString> pending : prefetched) pending.cancel(true);
+            prefetched.clear();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latest latency samples of one kind of request and answers percentiles over them.
+ */
+public class LatencyTracker {
+
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    public LatencyTracker(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    //    latency in nanoseconds below which the given percent of the samples fall, -1 without samples
+    public long percentile(double percent) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) return -1;
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
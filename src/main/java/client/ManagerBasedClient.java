@@ -1,17 +1,58 @@
 package client;
 
+import com.google.protobuf.ByteString;
+import common.Hasher;
 import manager.ChordManagerClient;
+import net.grpc.chord.GetResponse;
+import net.grpc.chord.Identifier;
+import net.grpc.chord.MembershipResponse;
+import net.grpc.chord.ReturnCode;
+import node.ChordNodeClient;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Client of a ring run by the manager.
+ *
+ * By default every request goes through the manager. With direct routing the client keeps a copy
+ * of the manager's membership, hashes keys itself and talks to the owning node. It goes back to the
+ * manager only when a node turns a request down or the membership version has moved on, and checks
+ * the version at most once every MEMBERSHIP_CHECK_MILLIS otherwise.
+ */
 public class ManagerBasedClient {
 
+    private static final long MEMBERSHIP_CHECK_MILLIS = 5000;
+
     private String IP = "localhost";
     private int port = 9527;
+    private volatile boolean directRouting;
+    private volatile Membership membership;
+
+    public ManagerBasedClient() {
+    }
+
+    public ManagerBasedClient(String IP, int port) {
+        this.IP = IP;
+        this.port = port;
+    }
+
+    public void setDirectRouting(boolean directRouting) {
+        this.directRouting = directRouting;
+    }
 
     public boolean put(String key, String value){
+        return put(key, ByteString.copyFromUtf8(value));
+    }
+
+    public boolean put(String key, ByteString value){
+        if (directRouting) {
+            Boolean stored = putDirect(key, value);
+            if (stored != null) return stored;
+        }
         ChordManagerClient managerClient = new ChordManagerClient(IP, port);
         managerClient.put(key, value);
         managerClient.close();
@@ -19,13 +60,119 @@ public class ManagerBasedClient {
     }
 
     public String get(String key) {
+        ByteString value = getBytes(key);
+        return value == null ? null : value.toStringUtf8();
+    }
+
+    public ByteString getBytes(String key) {
+        if (directRouting) {
+            Membership current = currentMembership();
+            if (current != null) {
+                GetResponse response = getFromOwner(current, key);
+//                a miss is final, only a refusal or a dead owner sends us back to the manager
+                if (!isStaleRoute(response) || (current = refreshIfChanged(current)) == null) return valueOf(response);
+                return valueOf(getFromOwner(current, key));
+            }
+        }
         ChordManagerClient managerClient = new ChordManagerClient(IP, port);
-        String value = managerClient.get(key);
+        ByteString value = managerClient.getBytes(key);
         managerClient.close();
         return value;
     }
 
 
+    //    null when the membership is unavailable and the manager has to handle the put
+    private Boolean putDirect(String key, ByteString value) {
+        Membership current = currentMembership();
+        if (current == null) return null;
+        if (putToOwner(current, key, value)) return true;
+
+//        the owner refused or did not answer, retry once on the latest membership
+        Membership refreshed = refreshIfChanged(current);
+        if (refreshed != null && putToOwner(refreshed, key, value)) return true;
+        return null;
+    }
+
+    private boolean putToOwner(Membership current, String key, ByteString value) {
+        Identifier owner = current.owner(key);
+        if (owner == null) return false;
+        ChordNodeClient nodeClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+        boolean stored = nodeClient.put(key, value);
+        nodeClient.close();
+        return stored;
+    }
+
+    //    null when there is no owner or it could not be reached
+    private GetResponse getFromOwner(Membership current, String key) {
+        Identifier owner = current.owner(key);
+        if (owner == null) return null;
+        ChordNodeClient nodeClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+        GetResponse response = nodeClient.getWithStatus(key);
+        nodeClient.close();
+        return response;
+    }
+
+    private static boolean isStaleRoute(GetResponse response) {
+        return response == null || response.getRet() == ReturnCode.NOT_OWNER;
+    }
+
+    private static ByteString valueOf(GetResponse response) {
+        return response != null && response.getRet() == ReturnCode.SUCCESS ? response.getValue() : null;
+    }
+
+    //    the cached membership, fetched on first use and after its version check is due
+    private Membership currentMembership() {
+        Membership current = membership;
+        if (current == null) return fetchMembership();
+        if (System.currentTimeMillis() - current.checkedAt < MEMBERSHIP_CHECK_MILLIS) return current;
+        Membership refreshed = refreshIfChanged(current);
+        return refreshed == null ? current : refreshed;
+    }
+
+    //    a newer membership, or null when the manager still has the same version
+    private Membership refreshIfChanged(Membership current) {
+        ChordManagerClient managerClient = new ChordManagerClient(IP, port);
+        long version = managerClient.getMembershipVersion();
+        managerClient.close();
+        if (version == -1 || version == current.version) {
+            current.checkedAt = System.currentTimeMillis();
+            return null;
+        }
+        return fetchMembership();
+    }
+
+    private Membership fetchMembership() {
+        ChordManagerClient managerClient = new ChordManagerClient(IP, port);
+        MembershipResponse response = managerClient.getMembership();
+        managerClient.close();
+        if (response == null || response.getNodesCount() == 0) return null;
+        Membership fetched = new Membership(response);
+        membership = fetched;
+        return fetched;
+    }
+
+    private static class Membership {
+        private final long version;
+        private final Hasher hasher;
+        private final TreeMap<Integer, Identifier> nodes = new TreeMap<>();
+        private volatile long checkedAt = System.currentTimeMillis();
+
+        Membership(MembershipResponse response) {
+            this.version = response.getVersion();
+            this.hasher = new Hasher(1 << response.getRingSizeExp());
+            for (Identifier node : response.getNodesList()) {
+                nodes.put(node.getID(), node);
+            }
+        }
+
+        //        first node at or after the key's ring position, as the manager resolves it
+        Identifier owner(String key) {
+            Map.Entry<Integer, Identifier> entry = nodes.ceilingEntry(hasher.hash(key));
+            if (entry == null) entry = nodes.firstEntry();
+            return entry == null ? null : entry.getValue();
+        }
+    }
+
     public static void main(String[] args){
         ManagerBasedClient client = new ManagerBasedClient();
         while(true){
@@ -0,0 +1,116 @@
+package client;
+
+import net.grpc.chord.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Client side view of ring ownership.
+ *
+ * Each entry maps a node ID to the range (low, nodeID] the node is known to own. Ranges are learned
+ * from lookup answers (the owner of key k owns at least [k, owner]) and from successors lists
+ * (consecutive successors s1, s2 mean s2 owns exactly (s1, s2]).
+ */
+public class RingRoutingCache {
+
+    private final ConcurrentSkipListMap<Integer, Route> routes = new ConcurrentSkipListMap<>();
+    private final int ringSize;
+
+    public RingRoutingCache(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public Identifier lookup(int keyID) {
+        Map.Entry<Integer, Route> entry = routes.ceilingEntry(keyID);
+        if (entry == null) entry = routes.firstEntry();
+        if (entry == null) return null;
+
+        Route route = entry.getValue();
+        return inRange(keyID, route.low, route.owner.getID()) ? route.owner : null;
+    }
+
+    public void learnOwner(int keyID, Identifier owner) {
+        if (!validIdentifier(owner)) return;
+        int low = (keyID - 1 + ringSize) % ringSize;
+        Route known = routes.get(owner.getID());
+        if (known != null && known.owner.equals(owner) && distance(known.low, owner.getID()) >= distance(low, owner.getID())) {
+            return;
+        }
+        routes.put(owner.getID(), new Route(owner, low));
+    }
+
+    public void learnSuccessors(Identifier node, List<Identifier> successorsList) {
+        if (!validIdentifier(node) || successorsList == null) return;
+        Identifier previous = node;
+        for (Identifier successor : successorsList) {
+            if (!validIdentifier(successor) || successor.getID() == node.getID()) break;
+            removeBetween(previous.getID(), successor.getID());
+            routes.put(successor.getID(), new Route(successor, previous.getID()));
+            previous = successor;
+        }
+    }
+
+    //    up to count nodes known to follow node directly, in ring order
+    public List<Identifier> successors(Identifier node, int count) {
+        List<Identifier> successors = new ArrayList<>();
+        int previousID = node.getID();
+        while (successors.size() < count) {
+            Map.Entry<Integer, Route> entry = routes.higherEntry(previousID);
+            if (entry == null) entry = routes.firstEntry();
+            if (entry == null || entry.getKey() == node.getID() || entry.getValue().low != previousID) break;
+            successors.add(entry.getValue().owner);
+            previousID = entry.getKey();
+        }
+        return successors;
+    }
+
+    public void invalidate(Identifier owner) {
+        if (owner != null) routes.remove(owner.getID());
+    }
+
+    public void clear() {
+        routes.clear();
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    //    nodes strictly between two consecutive successors have left the ring
+    private void removeBetween(int leftID, int rightID) {
+        for (Integer nodeID : routes.keySet()) {
+            if (nodeID != rightID && inRange(nodeID, leftID, rightID)) {
+                routes.remove(nodeID);
+            }
+        }
+    }
+
+    private int distance(int fromID, int toID) {
+        return (toID - fromID + ringSize) % ringSize;
+    }
+
+    private boolean inRange(int id, int leftID, int rightID) {
+        if (leftID < rightID) {
+            return id > leftID && id <= rightID;
+        } else {
+            return id > leftID || id <= rightID;
+        }
+    }
+
+    private boolean validIdentifier(Identifier identifier) {
+        return identifier != null && identifier.getID() != -1 && !identifier.getIP().equals("");
+    }
+
+    private static class Route {
+        private final Identifier owner;
+        private final int low;
+
+        Route(Identifier owner, int low) {
+            this.owner = owner;
+            this.low = low;
+        }
+    }
+}
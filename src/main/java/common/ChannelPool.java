@@ -0,0 +1,138 @@
+package common;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Process wide registry of long-lived gRPC channels keyed by IP:port.
+ *
+ * Every client (node to node, manager to node, user client to node) acquires its channel here
+ * instead of building a new one, so a process keeps one multiplexed HTTP/2 connection per peer.
+ * Channels are reference counted; a channel nobody holds for longer than the idle timeout is shut down.
+ */
+public class ChannelPool {
+
+    private static final Logger logger = Logger.getLogger(ChannelPool.class.getName());
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+    private static final ChannelPool INSTANCE = new ChannelPool(DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    private final Map<String, PooledChannel> channels = new ConcurrentHashMap<>();
+    private final long idleTimeoutMillis;
+    private final ScheduledExecutorService evictor;
+
+    public ChannelPool(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "channel-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(idleTimeoutMillis / 2, 1);
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static ChannelPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the shared channel to host:port, creating it if needed.
+     * Every acquire must be paired with a {@link #release(String, int)}.
+     */
+    public ManagedChannel acquire(String host, int port) {
+        String address = toAddress(host, port);
+        while (true) {
+            PooledChannel pooled = channels.computeIfAbsent(address, a -> new PooledChannel(host, port));
+            synchronized (pooled) {
+                // lost the race against the evictor, take a fresh entry
+                if (pooled.evicted) continue;
+
+                pooled.ensureHealthy();
+                pooled.refCount++;
+                pooled.lastUsed = System.currentTimeMillis();
+                return pooled.channel;
+            }
+        }
+    }
+
+    public void release(String host, int port) {
+        PooledChannel pooled = channels.get(toAddress(host, port));
+        if (pooled == null) return;
+        synchronized (pooled) {
+            if (pooled.refCount > 0) pooled.refCount--;
+            pooled.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    public void shutdown() {
+        evictor.shutdownNow();
+        for (Map.Entry<String, PooledChannel> entry : channels.entrySet()) {
+            PooledChannel pooled = entry.getValue();
+            synchronized (pooled) {
+                pooled.evicted = true;
+                pooled.channel.shutdownNow();
+            }
+            channels.remove(entry.getKey(), pooled);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PooledChannel> entry : channels.entrySet()) {
+            PooledChannel pooled = entry.getValue();
+            synchronized (pooled) {
+                if (pooled.refCount > 0 || now - pooled.lastUsed < idleTimeoutMillis) continue;
+                pooled.evicted = true;
+                channels.remove(entry.getKey(), pooled);
+                pooled.channel.shutdown();
+                logger.fine("Evicted idle channel to " + entry.getKey());
+            }
+        }
+    }
+
+    private static String toAddress(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static class PooledChannel {
+        private final String host;
+        private final int port;
+        private final ManagedChannel channel;
+        private int refCount;
+        private long lastUsed;
+        private boolean evicted;
+
+        PooledChannel(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.channel = build();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        private ManagedChannel build() {
+            return ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
+        }
+
+        //        skip the reconnect backoff of a failing channel so a peer that came back is reachable
+        //        on the next call instead of after the backoff expires; pooled channels are only shut
+        //        down after they left the map, so there is never a dead one to rebuild here
+        void ensureHealthy() {
+            if (channel.getState(false) == ConnectivityState.TRANSIENT_FAILURE) {
+                channel.resetConnectBackoff();
+            }
+        }
+    }
+}
@@ -1,31 +0,0 @@
-package common;
-
-public class FileNode {
-    private String name;
-    private String content;
-
-    public FileNode(String name, String content){
-        this.name = name;
-        this.content = content;
-    }
-
-    public String getName() {
-        return name;
-    }
-
-    public void setName(String name) {
-        this.name = name;
-    }
-
-    public String getContent() {
-        return content;
-    }
-
-    public void setContent(String content) {
-        this.content = content;
-    }
-
-
-
-
-}
@@ -2,10 +2,38 @@ package common;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Hasher {
 
+    /**
+     * How a key is placed on the ring. Every node, manager and client of one ring must use the same mode.
+     */
+    public enum Mode {
+        //        String.hashCode() of the hex encoded SHA-1, the original placement
+        SHA1_HEX,
+        //        first four bytes of the SHA-1 digest, no intermediate strings
+        SHA1,
+        //        non-cryptographic Murmur3 over the UTF-16 chars of the key
+        MURMUR3
+    }
+
+    public static final String MODE_PROPERTY = "chord.hasher.mode";
+
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> DIGEST_OUTPUT = ThreadLocal.withInitial(() -> new byte[20]);
+    private static final ThreadLocal<byte[]> UTF8_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
+
     private int total;
+    private Mode mode;
 
     public int getTotal() {
         return total;
@@ -15,18 +43,119 @@ public class Hasher {
         this.total = total;
     }
 
+    public Mode getMode() {
+        return mode;
+    }
+
     public Hasher(int total){
+        this(total, defaultMode());
+    }
+
+    public Hasher(int total, Mode mode){
         this.total = total;
+        this.mode = mode;
+    }
+
+    //    -Dchord.hasher.mode=SHA1 switches the whole process, SHA1_HEX keeps existing rings readable
+    public static Mode defaultMode() {
+        return Mode.valueOf(System.getProperty(MODE_PROPERTY, Mode.SHA1_HEX.name()).toUpperCase());
     }
 
     public int hash(String key){
-        return Math.abs(sha1Digest(key).hashCode()) % total;
+        switch (mode) {
+            case SHA1:
+                return (sha1Prefix(key) & 0x7fffffff) % total;
+            case MURMUR3:
+                return (murmur3(key) & 0x7fffffff) % total;
+            default:
+                return Math.abs(sha1Digest(key).hashCode()) % total;
+        }
     }
 
     public String sha1Digest(String key){
         return DigestUtils.sha1Hex(key);
     }
 
+    //    big endian int of the first four digest bytes, using per thread digest and buffers
+    private static int sha1Prefix(String key) {
+        MessageDigest digest = SHA1_DIGEST.get();
+        byte[] output = DIGEST_OUTPUT.get();
+        int length = encodeUtf8(key);
+        digest.update(UTF8_BUFFER.get(), 0, length);
+        try {
+            digest.digest(output, 0, output.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return ((output[0] & 0xff) << 24) | ((output[1] & 0xff) << 16) | ((output[2] & 0xff) << 8) | (output[3] & 0xff);
+    }
+
+    //    same bytes as key.getBytes(UTF_8) written into the thread's buffer, returns the length
+    private static int encodeUtf8(String key) {
+        byte[] buffer = UTF8_BUFFER.get();
+        if (buffer.length < key.length() * 3) {
+            buffer = new byte[key.length() * 3];
+            UTF8_BUFFER.set(buffer);
+        }
+        int position = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = (byte) '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return position;
+    }
+
+    //    murmur3_32 over pairs of UTF-16 chars, seed 0
+    private static int murmur3(String key) {
+        int h1 = 0;
+        int length = key.length();
+        for (int i = 1; i < length; i += 2) {
+            int k1 = key.charAt(i - 1) | (key.charAt(i) << 16);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+        if ((length & 1) == 1) {
+            h1 ^= mixK1(key.charAt(length - 1));
+        }
+        h1 ^= 2 * length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= 0xcc9e2d51;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= 0x1b873593;
+        return k1;
+    }
+
+    private static int mixH1(int h1, int k1) {
+        h1 ^= k1;
+        h1 = Integer.rotateLeft(h1, 13);
+        h1 = h1 * 5 + 0xe6546b64;
+        return h1;
+    }
+
 
 
     public static void main (String[] args) {
@@ -1,11 +1,14 @@
 package manager;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import common.ChannelPool;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import net.grpc.chord.*;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,13 +19,22 @@ public class ChordManagerClient {
     private final ChordManagerServiceGrpc.ChordManagerServiceBlockingStub blockingStub;
     private final ChordManagerServiceGrpc.ChordManagerServiceStub asyncStub;
     private final ChordManagerServiceGrpc.ChordManagerServiceFutureStub futureStub;
+    private final String pooledHost;
+    private final int pooledPort;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     public ChordManagerClient(String host, int port) {
-        this(ManagedChannelBuilder.forAddress(host, port).usePlaintext());
+        this(ChannelPool.getInstance().acquire(host, port), host, port);
     }
 
     public ChordManagerClient(ManagedChannelBuilder<?> channelBuilder) {
-        channel = channelBuilder.build();
+        this(channelBuilder.build(), null, -1);
+    }
+
+    private ChordManagerClient(ManagedChannel channel, String pooledHost, int pooledPort) {
+        this.channel = channel;
+        this.pooledHost = pooledHost;
+        this.pooledPort = pooledPort;
         blockingStub = ChordManagerServiceGrpc.newBlockingStub(channel);
         asyncStub = ChordManagerServiceGrpc.newStub(channel);
         futureStub = ChordManagerServiceGrpc.newFutureStub(channel);
@@ -45,6 +57,28 @@ public class ChordManagerClient {
 
         return successorIdentifier;
     }
+    //    -1 when the manager cannot be reached
+    public long getMembershipVersion() {
+        MembershipVersionRequest request = MembershipVersionRequest.newBuilder().build();
+        try {
+            return blockingStub.getMembershipVersion(request).getVersion();
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+            return -1;
+        }
+    }
+
+    //    null when the manager cannot be reached
+    public MembershipResponse getMembership() {
+        MembershipRequest request = MembershipRequest.newBuilder().build();
+        try {
+            return blockingStub.getMembership(request);
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+            return null;
+        }
+    }
+
     public Identifier join(int ID, String IP, int port) {
         JoinRequest joinRequest = JoinRequest.newBuilder().setID(ID)
                 .setAddress(IP).setPort(port).build();
@@ -70,10 +104,19 @@ public class ChordManagerClient {
     }
 
     public void close() {
-        this.channel.shutdownNow();
+        if (!closed.compareAndSet(false, true)) return;
+        if (pooledHost != null) {
+            ChannelPool.getInstance().release(pooledHost, pooledPort);
+        } else {
+            this.channel.shutdownNow();
+        }
     }
 
     public boolean put(String key, String val){
+        return put(key, ByteString.copyFromUtf8(val));
+    }
+
+    public boolean put(String key, ByteString val){
         PutRequest request = PutRequest.newBuilder().setKey(key).setValue(val).build();
         PutResponse putResponse;
         try {
@@ -87,6 +130,11 @@ public class ChordManagerClient {
     }
 
     public String get(String key){
+        ByteString value = getBytes(key);
+        return value == null ? null : value.toStringUtf8();
+    }
+
+    public ByteString getBytes(String key){
         GetRequest request = GetRequest.newBuilder().setKey(key).build();
         GetResponse getResponse;
         try {
@@ -100,6 +148,10 @@ public class ChordManagerClient {
     }
 
     public ListenableFuture<PutResponse> putFuture(String key, String val){
+        return putFuture(key, ByteString.copyFromUtf8(val));
+    }
+
+    public ListenableFuture<PutResponse> putFuture(String key, ByteString val){
         PutRequest request = PutRequest.newBuilder().setKey(key).setValue(val).build();
         ListenableFuture<PutResponse> putResponseFuture;
         try {
@@ -149,7 +201,7 @@ public class ChordManagerClient {
             logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
             return false;
         }
-        return true;
+        return response.getRet() == ReturnCode.SUCCESS;
     }
 
     public String readFileKey(String absPath) {
@@ -1,8 +1,9 @@
 package manager;
 
-import common.FileNode;
+import client.Client;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import common.Hasher;
-import common.TreeNode;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -10,40 +11,18 @@ import net.grpc.chord.*;
 import node.ChordNodeClient;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class NodeStatus {
-    private Identifier node; // Chord node
-    private boolean status; // true -> online, false -> offline
-
-
-    public NodeStatus(Identifier node, boolean status) {
-        this.node = node;
-        this.status = status;
-    }
-
-    public String getIP() { return node == null? null : node.getIP(); }
-
-    public int getPort() { return node == null? null : node.getPort(); }
-
-    public void setNode(Identifier identifier) { this.node = identifier; }
-
-    public Identifier getNode() {
-        return this.node;
-    }
-
-    public boolean getStatus() {
-        return this.status;
-    }
-
-    public void setStatus(boolean status) {
-        this.status = status;
-    }
-}
-
 public class ChordManagerServer {
 
     private static final Logger logger = Logger.getLogger(ChordManagerServer.class.getName());
@@ -52,8 +31,10 @@ public class ChordManagerServer {
 
     private ChordManagerService chordManagerService;
 
-    private ChordManagerServer(String selfIP, int selfPort) {
-        chordManagerService = new ChordManagerService();
+    public static final int DEFAULT_RING_SIZE_EXP = 13;
+
+    private ChordManagerServer(String selfIP, int selfPort, int ringSizeExp, String[] ringAddresses) {
+        chordManagerService = new ChordManagerService(ringSizeExp, ringAddresses);
         server = ServerBuilder.forPort(selfPort).addService(chordManagerService)
                 .build();
     }
@@ -65,25 +46,24 @@ public class ChordManagerServer {
 
     private static class ChordManagerService extends ChordManagerServiceGrpc.ChordManagerServiceImplBase {
 
-        NodeStatus[] manager;
-        private static int ringSizeExp = 13;
-        private Hasher hasher = new Hasher(1 << ringSizeExp);
-
-
-        private TreeNode rootDir;
-
-
-
-        public ChordManagerService() {
-            manager = new NodeStatus[1 << ringSizeExp];
-
-            // Set all nodes to offline mode when initializing the manager
-            for (int i = 0; i < 1 << ringSizeExp; i++) {
-                Identifier node = Identifier.newBuilder().setID(i).build();
-                manager[i] = new NodeStatus(node, false);
-            }
-
-            this.rootDir = new TreeNode("root");
+        // online nodes by ring ID, the successor of an ID is its ceiling entry
+        private final ConcurrentSkipListMap<Integer, Identifier> onlineNodes = new ConcurrentSkipListMap<>();
+        // bumped on every change of onlineNodes, so clients can tell when their copy is stale
+        private final AtomicLong membershipVersion = new AtomicLong();
+        private final ConsecutiveFailureDetector failureDetector = new ConsecutiveFailureDetector();
+        private static final long PING_DEADLINE_MILLIS = 500;
+        private Hasher hasher;
+        private int ringSizeExp;
+        private FileNamespace namespace;
+        // routes namespace records through the ring when its nodes do not join through the manager, may be null
+        private Client ringClient;
+
+
+        public ChordManagerService(int ringSizeExp, String[] ringAddresses) {
+            this.ringSizeExp = ringSizeExp;
+            this.hasher = new Hasher(1 << ringSizeExp);
+            if (ringAddresses != null) this.ringClient = new Client(ringAddresses, ringSizeExp);
+            this.namespace = new FileNamespace(new RingStore());
         }
 
         public void start() {
@@ -93,20 +73,45 @@ public class ChordManagerServer {
             timer.schedule(pingTask, 1000, 1000);
         }
 
+        // pings every online node at once over the pooled channels, so a slow node costs the round
+        // at most one deadline; a node goes offline after several missed checks in a row
         public void pingNodes() {
-            for (NodeStatus node : manager) {
-                if (node.getStatus() == true) {
-                    ChordNodeClient client = new ChordNodeClient(node.getIP(), node.getPort());
+            List<ChordNodeClient> clients = new ArrayList<>();
+            Map<Identifier, ListenableFuture<PingResponse>> pings = new LinkedHashMap<>();
+            for (Identifier node : onlineNodes.values()) {
+                ChordNodeClient client = new ChordNodeClient(node.getIP(), node.getPort());
+                clients.add(client);
+                pings.put(node, client.pingFuture(PING_DEADLINE_MILLIS));
+            }
 
-                    if (!client.ping()) {
-                        node.setStatus((false));
+            try {
+                for (Map.Entry<Identifier, ListenableFuture<PingResponse>> ping : pings.entrySet()) {
+                    Identifier node = ping.getKey();
+                    try {
+                        ping.getValue().get();
+                        failureDetector.recordSuccess(node.getID());
+                    } catch (ExecutionException e) {
+                        if (failureDetector.recordFailure(node.getID())) {
+                            removeNode(node);
+                        }
                     }
-
-                    client.close();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (ChordNodeClient client : clients) client.close();
             }
         }
 
+        private void removeNode(Identifier node) {
+            // a node that rejoined meanwhile stays online
+            if (onlineNodes.remove(node.getID(), node)) {
+                membershipVersion.incrementAndGet();
+                logger.info(String.format("Node %d at %s:%d is offline", node.getID(), node.getIP(), node.getPort()));
+            }
+            failureDetector.forget(node.getID());
+        }
+
         class PingTask extends TimerTask {
             @Override
             public void run() {
@@ -120,65 +125,65 @@ public class ChordManagerServer {
             String ip = joinRequest.getAddress();
             int port = joinRequest.getPort();
 
-            manager[id].setStatus(true); // mark the joining node's ID as a online node
-            this.manager[id].setNode(Identifier.newBuilder().setIP(ip).setPort(port).build());
-
-            int startPoint = id + 1; // start point for searching the successor
-            // if the joining id is the last ID, starting from 0
-            if (id == manager.length - 1) {
-                startPoint = 0;
+            // mark the joining node's ID as a online node
+            Identifier joining = Identifier.newBuilder().setID(id).setIP(ip).setPort(port).build();
+            if (!joining.equals(onlineNodes.put(id, joining))) {
+                membershipVersion.incrementAndGet();
             }
+            failureDetector.forget(id);
 
+            // the first online node after the joining one, itself when it is alone
+            Map.Entry<Integer, Identifier> next = onlineNodes.higherEntry(id);
+            if (next == null) next = onlineNodes.firstEntry();
+            Identifier successor = next.getValue();
 
-            JoinResponse joinResponse;
-            int retID = findNextAvailableNode(startPoint, id + manager.length);
-            if (retID == -1) {
-                joinResponse = JoinResponse.newBuilder().setID(id).setAddress(ip).setPort(port).build();
-            }
-            else {
-                joinResponse = JoinResponse.newBuilder().setID(retID).setAddress(manager[retID].getIP())
-                        .setPort(manager[retID].getPort()).build();
-            }
+            JoinResponse joinResponse = JoinResponse.newBuilder().setID(successor.getID()).setAddress(successor.getIP())
+                    .setPort(successor.getPort()).build();
 
-            System.out.println("returning ID to calling server " + retID);
+            logger.fine("returning ID to calling server " + successor.getID());
             responseObserver.onNext(joinResponse);
             responseObserver.onCompleted();
         }
 
-        public int findNextAvailableNode(int startPoint, int endPoint) {
+        @Override
+        public void getMembershipVersion(MembershipVersionRequest request, StreamObserver<MembershipVersionResponse> responseObserver) {
+            responseObserver.onNext(MembershipVersionResponse.newBuilder().setVersion(membershipVersion.get()).build());
+            responseObserver.onCompleted();
+        }
 
-            boolean found = false;
-            for (; startPoint < endPoint; startPoint++) {
-                int index = startPoint % this.manager.length;
-                if (this.manager[index].getStatus()) {
-                    System.out.println("Found available node: " + index);
-                    found = true;
-                    break;
-                }
-            }
-            if (found) {
-                return startPoint % this.manager.length;
-            }
-            return -1;
+        @Override
+        public void getMembership(MembershipRequest request, StreamObserver<MembershipResponse> responseObserver) {
+            MembershipResponse.Builder response;
+            long version;
+            // copy again if a join or failure changed the nodes while they were being copied
+            do {
+                version = membershipVersion.get();
+                response = MembershipResponse.newBuilder().setVersion(version).setRingSizeExp(ringSizeExp)
+                        .addAllNodes(onlineNodes.values());
+            } while (version != membershipVersion.get());
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        // first online node at or after id on the ring, null when no node is online
+        public Identifier findNextAvailableNode(int id) {
+            Map.Entry<Integer, Identifier> entry = onlineNodes.ceilingEntry(id);
+            if (entry == null) entry = onlineNodes.firstEntry();
+            return entry == null ? null : entry.getValue();
         }
 
         @Override
         public void putManager(PutRequest putRequest, StreamObserver<PutResponse> responseObserver) {
             String key = putRequest.getKey();
-            String value = putRequest.getValue();
+            ByteString value = putRequest.getValue();
             PutResponse response;
-            int hash = hasher.hash(key);
-            int nodeID = hash;
-            System.out.println("The hash of the key is: " + nodeID);
-            int nextNode = findNextAvailableNode(nodeID, nodeID + manager.length);
-            System.out.println("The next available node for put is: " + nextNode);
+            Identifier nextNode = findNextAvailableNode(hasher.hash(key));
             PutResponse putResponse;
-            if (nextNode == -1) {
+            if (nextNode == null) {
                 putResponse = PutResponse.newBuilder().setRet(ReturnCode.FAILURE).build();
             }
             else {
-                ChordNodeClient nodeClient = new ChordNodeClient(manager[nextNode].getIP(),
-                        manager[nextNode].getPort());
+                ChordNodeClient nodeClient = new ChordNodeClient(nextNode.getIP(), nextNode.getPort());
                 nodeClient.put(key, value);
                 nodeClient.close();
                 putResponse = PutResponse.newBuilder().setRet(ReturnCode.SUCCESS).build();
@@ -189,29 +194,26 @@ public class ChordManagerServer {
 
         @Override
         public void findSuccessor(FindRequest findRequest, StreamObserver<FindResponse> responseObserver) {
-            int id = findRequest.getID();
-            int nextNode = findNextAvailableNode(id, id + manager.length);
-            FindResponse findResponse = FindResponse.newBuilder().setID(nextNode).setAddress(manager[nextNode].getIP()).setPort(manager[nextNode].getPort()).build();
+            Identifier nextNode = findNextAvailableNode(findRequest.getID());
+            FindResponse findResponse = nextNode == null ? FindResponse.newBuilder().setID(-1).build()
+                    : FindResponse.newBuilder().setID(nextNode.getID()).setAddress(nextNode.getIP()).setPort(nextNode.getPort()).build();
             responseObserver.onNext(findResponse);
             responseObserver.onCompleted();
         }
         @Override
         public void getManager(GetRequest getRequest, StreamObserver<GetResponse> responseStreamObserver) {
             String key = getRequest.getKey();
-            int hash = hasher.hash(key);
-            int nodeID = hash;
-
-            int nextNode = findNextAvailableNode(nodeID, nodeID + manager.length);
+            Identifier nextNode = findNextAvailableNode(hasher.hash(key));
             GetResponse getResponse;
-            if (nextNode == -1) {
+            if (nextNode == null) {
                 getResponse = GetResponse.newBuilder().setRet(ReturnCode.FAILURE).build();
             }
             else {
-                ChordNodeClient nodeClient = new ChordNodeClient(manager[nextNode].getIP(),
-                        manager[nextNode].getPort());
-                String value = nodeClient.get(key);
+                ChordNodeClient nodeClient = new ChordNodeClient(nextNode.getIP(), nextNode.getPort());
+                ByteString value = nodeClient.getBytes(key);
                 nodeClient.close();
-                getResponse = GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS).build();
+                getResponse = value == null ? GetResponse.newBuilder().setRet(ReturnCode.FAILURE).build()
+                        : GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS).build();
             }
 
             responseStreamObserver.onNext(getResponse);
@@ -221,47 +223,78 @@ public class ChordManagerServer {
 
         @Override
         public void ls(lsRequest request, StreamObserver<lsResponse> responseObserver) {
-            String dirPath = request.getDir();
-            String thingsInDir = rootDir.listDir(dirPath);
-            String dirsInDir = thingsInDir.split("dirFileDivider")[0];
-            String filesInDir = thingsInDir.split("dirFileDivider")[1];
-            lsResponse response = lsResponse.newBuilder().setDirs(dirsInDir).setFiles(filesInDir).build();
-            responseObserver.onNext(response);
+            FileNamespace.Listing listing = namespace.list(request.getDir());
+            lsResponse.Builder response = lsResponse.newBuilder();
+//            names separated by ';', a directory that does not exist lists as empty
+            if (listing != null) {
+                response.setDirs(joinNames(listing.getDirs())).setFiles(joinNames(listing.getFiles()));
+            }
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
+        private String joinNames(List<String> names) {
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                sb.append(name);
+                sb.append(";");
+            }
+            return sb.toString();
+        }
+
         @Override
         public void readFileKey(ReadFileKeyRequest request, StreamObserver<ReadFileKeyResponse> responseObserver) {
-            String absFilePath = request.getAbsPath();
-            int fileNameStartIndex = absFilePath.lastIndexOf("/");
-            String pathBeforeFilename = absFilePath.substring(0, fileNameStartIndex);
-            String fileName = absFilePath.substring(fileNameStartIndex);
-            TreeNode targetDir = rootDir.reachNode(pathBeforeFilename);
-            String fileKey = targetDir.getFileKey(fileName);
-            ReadFileKeyResponse response = ReadFileKeyResponse.newBuilder().setFileKey(fileKey).build();
+            String fileKey = namespace.readFileKey(request.getAbsPath());
+//            an empty key tells the client there is no such file
+            ReadFileKeyResponse response = ReadFileKeyResponse.newBuilder().setFileKey(fileKey == null ? "" : fileKey).build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
         @Override
         public void writeFileKey(WriteFileKeyRequest request, StreamObserver<WriteFileKeyResponse> responseObserver) {
-            String absFilePath = request.getAbsPath();
-            String fileKey = request.getFileKey();
-            int fileNameStartIndex = absFilePath.lastIndexOf("/");
-            String fileName = absFilePath.substring(fileNameStartIndex);
-            rootDir.addFile(absFilePath, new FileNode(fileName, fileKey));
-            WriteFileKeyResponse response = WriteFileKeyResponse.newBuilder().build();
+            boolean written = namespace.writeFileKey(request.getAbsPath(), request.getFileKey());
+            WriteFileKeyResponse response = WriteFileKeyResponse.newBuilder()
+                    .setRet(written ? ReturnCode.SUCCESS : ReturnCode.FAILURE).build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
+        // directory records go to the node owning the hash of their key, like any other key: found among
+        // the nodes that joined the manager, or by asking the ring when none did
+        private class RingStore implements FileNamespace.Store {
+            @Override
+            public GetResponse get(String key) {
+                Identifier owner = findNextAvailableNode(hasher.hash(key));
+                if (owner == null) return ringClient == null ? null : ringClient.getWithStatus(key);
+                ChordNodeClient nodeClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+                GetResponse response = nodeClient.getWithStatus(key);
+                nodeClient.close();
+                return response;
+            }
+
+            @Override
+            public boolean put(String key, ByteString value) {
+                Identifier owner = findNextAvailableNode(hasher.hash(key));
+                if (owner == null) return ringClient != null && ringClient.put(key, value);
+                ChordNodeClient nodeClient = new ChordNodeClient(owner.getIP(), owner.getPort());
+                boolean stored = nodeClient.put(key, value);
+                nodeClient.close();
+                return stored;
+            }
+        }
+
     }
 
     public static void main(String[] args) {
         String ip = args[0];
         int port = Integer.valueOf(args[1]);
+        // optional ring size, must match the nodes and clients of the ring
+        int ringSizeExp = args.length > 2 ? Integer.valueOf(args[2]) : DEFAULT_RING_SIZE_EXP;
+        // optional ip:port of ring nodes, for a ring whose nodes do not join through the manager
+        String[] ringAddresses = args.length > 3 ? args[3].split(",") : null;
 
-        ChordManagerServer chordManagerServer = new ChordManagerServer(ip, port);
+        ChordManagerServer chordManagerServer = new ChordManagerServer(ip, port, ringSizeExp, ringAddresses);
 
         try {
             chordManagerServer.start();
@@ -0,0 +1,42 @@
+package manager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Declares a node failed after a number of health checks in a row went unanswered.
+ *
+ * A single lost or late ping does not take a node out of the ring; any answer resets its count.
+ */
+public class ConsecutiveFailureDetector {
+
+    public static final int DEFAULT_THRESHOLD = 3;
+
+    private final int threshold;
+    private final Map<Integer, Integer> failures = new ConcurrentHashMap<>();
+
+    public ConsecutiveFailureDetector() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public ConsecutiveFailureDetector(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public void recordSuccess(int nodeID) {
+        failures.remove(nodeID);
+    }
+
+    //    true once the node has missed threshold checks in a row
+    public boolean recordFailure(int nodeID) {
+        return failures.merge(nodeID, 1, Integer::sum) >= threshold;
+    }
+
+    public int failures(int nodeID) {
+        return failures.getOrDefault(nodeID, 0);
+    }
+
+    public void forget(int nodeID) {
+        failures.remove(nodeID);
+    }
+}
@@ -0,0 +1,198 @@
+package manager;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import net.grpc.chord.DirectoryEntries;
+import net.grpc.chord.GetResponse;
+import net.grpc.chord.ReturnCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * File system namespace of the manager, mapping absolute file paths to the keys of their manifests.
+ *
+ * Every directory is one record in a key/value store, under the key DIRECTORY_PREFIX + its path,
+ * holding the names of its subdirectories and the file keys of its files. On the ring the hash of
+ * that key places the directory on a node, so the namespace is sharded by directory path, a file
+ * lives with its parent directory, and the manager keeps nothing of it on its heap. Writers of one
+ * directory wait for each other on a lock stripe, readers take no lock since a record is replaced
+ * as a whole. "/a/b", "a/b/" and "a//b" all name the same directory, the root is the empty path.
+ */
+public class FileNamespace {
+
+    private static final Logger logger = Logger.getLogger(FileNamespace.class.getName());
+
+    public static final String DIRECTORY_PREFIX = "fs-dir:";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Store store;
+    //    serializes the read-modify-write of the directories in one stripe
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    //    a store on the heap, for a namespace that does not need to outlive the process
+    public FileNamespace() {
+        this(new MemoryStore());
+    }
+
+    public FileNamespace(Store store) {
+        this.store = store;
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    //    links the file into its directory, creating missing directories on the way;
+    //    false for a path without a file name or when a directory could not be read or written
+    public boolean writeFileKey(String absPath, String fileKey) {
+        String path = normalize(absPath);
+        if (path.isEmpty()) return false;
+        int split = path.lastIndexOf('/');
+        String dirPath = split < 0 ? "" : path.substring(0, split);
+        String fileName = path.substring(split + 1);
+
+        if (!mkdirs(dirPath)) return false;
+        synchronized (lockFor(dirPath)) {
+            Loaded dir = load(dirPath);
+            return dir != null && save(dirPath, dir.entries.toBuilder().putFiles(fileName, fileKey).build());
+        }
+    }
+
+    //    null when there is no such file or its directory could not be read
+    public String readFileKey(String absPath) {
+        String path = normalize(absPath);
+        int split = path.lastIndexOf('/');
+        Loaded dir = load(split < 0 ? "" : path.substring(0, split));
+        if (dir == null || !dir.existed) return null;
+        return dir.entries.getFilesOrDefault(path.substring(split + 1), null);
+    }
+
+    //    names of the subdirectories and files of one directory, both sorted, or null when it does not exist
+    public Listing list(String dirPath) {
+        String path = normalize(dirPath);
+        Loaded dir = load(path);
+        if (dir == null) return null;
+//        the root always exists, even before the first file
+        if (!dir.existed && !path.isEmpty()) return null;
+        List<String> dirs = new ArrayList<>(dir.entries.getDirsList());
+        List<String> files = new ArrayList<>(dir.entries.getFilesMap().keySet());
+        Collections.sort(dirs);
+        Collections.sort(files);
+        return new Listing(dirs, files);
+    }
+
+    //    makes sure every directory on the way lists the next one; a record is only written once its
+    //    parent lists it, so an existing directory is reachable from the root and a failed call is
+    //    completed by the next one
+    private boolean mkdirs(String path) {
+        if (path.isEmpty()) return true;
+        Loaded dir = load(path);
+        if (dir == null) return false;
+        if (dir.existed) return true;
+
+        int split = path.lastIndexOf('/');
+        String parentPath = split < 0 ? "" : path.substring(0, split);
+        String name = path.substring(split + 1);
+        if (!mkdirs(parentPath)) return false;
+        synchronized (lockFor(parentPath)) {
+            Loaded parent = load(parentPath);
+            if (parent == null) return false;
+            return parent.entries.getDirsList().contains(name) || save(parentPath, parent.entries.toBuilder().addDirs(name).build());
+        }
+    }
+
+    //    null when the store could not answer, an empty record for a directory that does not exist yet
+    private Loaded load(String path) {
+        GetResponse response = store.get(DIRECTORY_PREFIX + path);
+        if (response == null || response.getRet() == ReturnCode.NOT_OWNER) {
+            logger.warning("Reading directory /" + path + " failed");
+            return null;
+        }
+        if (response.getRet() != ReturnCode.SUCCESS) return new Loaded(DirectoryEntries.getDefaultInstance(), false);
+        try {
+            return new Loaded(DirectoryEntries.parseFrom(response.getValue()), true);
+        } catch (InvalidProtocolBufferException e) {
+            logger.warning("Directory /" + path + " is corrupt: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean save(String path, DirectoryEntries entries) {
+        if (store.put(DIRECTORY_PREFIX + path, entries.toByteString())) return true;
+        logger.warning("Writing directory /" + path + " failed");
+        return false;
+    }
+
+    private Object lockFor(String path) {
+        return locks[(path.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    static String normalize(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (String step : path.split("/")) {
+            if (step.isEmpty()) continue;
+            if (sb.length() > 0) sb.append('/');
+            sb.append(step);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Where the directory records are kept.
+     */
+    public interface Store {
+
+        //    SUCCESS with the value, FAILURE for a missing key, null or NOT_OWNER when it could not be read
+        GetResponse get(String key);
+
+        boolean put(String key, ByteString value);
+    }
+
+    private static class MemoryStore implements Store {
+        private final Map<String, ByteString> records = new ConcurrentHashMap<>();
+
+        @Override
+        public GetResponse get(String key) {
+            ByteString value = records.get(key);
+            return value == null ? GetResponse.newBuilder().setRet(ReturnCode.FAILURE).build()
+                    : GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS).build();
+        }
+
+        @Override
+        public boolean put(String key, ByteString value) {
+            records.put(key, value);
+            return true;
+        }
+    }
+
+    public static class Listing {
+        private final List<String> dirs;
+        private final List<String> files;
+
+        Listing(List<String> dirs, List<String> files) {
+            this.dirs = dirs;
+            this.files = files;
+        }
+
+        public List<String> getDirs() {
+            return dirs;
+        }
+
+        public List<String> getFiles() {
+            return files;
+        }
+    }
+
+    private static class Loaded {
+        private final DirectoryEntries entries;
+        private final boolean existed;
+
+        Loaded(DirectoryEntries entries, boolean existed) {
+            this.entries = entries;
+            this.existed = existed;
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package node;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import common.ChannelPool;
 import common.IdentifierWithHop;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import net.grpc.chord.*;
 
 import java.net.ConnectException;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,14 +32,24 @@ public class ChordNodeClient {
     private final ChordNodeServiceGrpc.ChordNodeServiceBlockingStub blockingStub;
     private final ChordNodeServiceGrpc.ChordNodeServiceStub asyncStub;
     private final ChordNodeServiceGrpc.ChordNodeServiceFutureStub futureStub;
+//    set when the channel is borrowed from the ChannelPool instead of owned by this client
+    private final String pooledHost;
+    private final int pooledPort;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     private Random random = new Random();
     public ChordNodeClient(String host, int port){
-        this(ManagedChannelBuilder.forAddress(host, port).usePlaintext());
+        this(ChannelPool.getInstance().acquire(host, port), host, port);
     }
 
     public ChordNodeClient(ManagedChannelBuilder<?> channelBuilder) {
-        channel = channelBuilder.build();
+        this(channelBuilder.build(), null, -1);
+    }
+
+    private ChordNodeClient(ManagedChannel channel, String pooledHost, int pooledPort) {
+        this.channel = channel;
+        this.pooledHost = pooledHost;
+        this.pooledPort = pooledPort;
         blockingStub = ChordNodeServiceGrpc.newBlockingStub(channel);
         asyncStub = ChordNodeServiceGrpc.newStub(channel);
         futureStub = ChordNodeServiceGrpc.newFutureStub(channel);
@@ -61,6 +82,11 @@ public class ChordNodeClient {
         return new IdentifierWithHop(findSuccessorResponse.getIdentifier(), findSuccessorResponse.getHop());
     }
 
+    public void findSuccessorAsync(int id, int hop, StreamObserver<FindSuccessorResponse> responseObserver){
+        FindSuccessorRequest request = FindSuccessorRequest.newBuilder().setID(id).setHop(hop).build();
+        asyncStub.findSuccessor(request, responseObserver);
+    }
+
     public boolean ping(){
         PingRequest request = PingRequest.newBuilder().build();
         PingResponse pingResponse;
@@ -73,6 +99,12 @@ public class ChordNodeClient {
         return true;
     }
 
+    //    fails with DEADLINE_EXCEEDED when the node does not answer in time
+    public ListenableFuture<PingResponse> pingFuture(long deadlineMillis){
+        PingRequest request = PingRequest.newBuilder().build();
+        return futureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).ping(request);
+    }
+
     public boolean notify(Identifier identifier){
         NotifyRequest request = NotifyRequest.newBuilder().setIdentifier(identifier).build();
         NotifyResponse notifyResponse;
@@ -112,7 +144,22 @@ public class ChordNodeClient {
         return response.getSuccessorsListList();
     }
 
-    public String transferData(int ID){
+    public List<Identifier> inquirePredecessorsList() {
+        InquirePredecessorsListRequest request = InquirePredecessorsListRequest.newBuilder().build();
+        InquirePredecessorsListResponse response;
+
+        try {
+            response = blockingStub.inquirePredecessorsList(request);
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+
+            return null;
+        }
+
+        return response.getPredecessorsListList();
+    }
+
+    public Map<String, ByteString> transferData(int ID){
         TransferDataRequest request = TransferDataRequest.newBuilder().setID(ID).build();
         TransferDataResponse response;
         try{
@@ -121,11 +168,11 @@ public class ChordNodeClient {
             logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
             return null;
         }
-        return response.getDataJson();
+        return response.getDataMap();
     }
 
-    public boolean acceptMyData(String dataJson){
-        AcceptMyDataRequest request = AcceptMyDataRequest.newBuilder().setDataJson(dataJson).build();
+    public boolean acceptMyData(Map<String, ByteString> data){
+        AcceptMyDataRequest request = AcceptMyDataRequest.newBuilder().putAllData(data).build();
         AcceptMyDataResponse response;
         try{
             response = blockingStub.acceptMyData(request);
@@ -136,8 +183,60 @@ public class ChordNodeClient {
         return true;
     }
 
-    public boolean addReplica(Identifier identifier, String dataJson){
-        AddReplicaRequest request = AddReplicaRequest.newBuilder().setIdentifier(identifier).setJsonData(dataJson).build();
+    //    streams chunks[startSequence..] keeping at most window chunks unacknowledged,
+    //    returns the highest sequence the receiver acknowledged
+    public long handoffData(String transferID, long startSequence, LongFunction<Map<String, ByteString>> chunks, int window, long timeoutMillis){
+        Semaphore credits = new Semaphore(window);
+        AtomicLong acked = new AtomicLong(startSequence - 1);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        CountDownLatch finished = new CountDownLatch(1);
+
+        StreamObserver<HandoffChunk> requestObserver = asyncStub.handoffData(new StreamObserver<HandoffAck>() {
+            @Override
+            public void onNext(HandoffAck ack) {
+                acked.accumulateAndGet(ack.getSequence(), Math::max);
+                credits.release();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.log(Level.WARNING, "Handoff stream failed: {0}", Status.fromThrowable(t));
+                failed.set(true);
+                credits.release(window);
+                finished.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                finished.countDown();
+            }
+        });
+
+        try {
+            for (long sequence = startSequence; ; sequence++) {
+                Map<String, ByteString> chunk = chunks.apply(sequence);
+                if (chunk == null) break;
+                if (!credits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) || failed.get()) {
+                    failed.set(true);
+                    break;
+                }
+                requestObserver.onNext(HandoffChunk.newBuilder().setTransferID(transferID).setSequence(sequence).putAllData(chunk).build());
+            }
+            if (failed.get()) {
+                requestObserver.onError(Status.CANCELLED.withDescription("handoff aborted").asRuntimeException());
+            } else {
+                requestObserver.onCompleted();
+                finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            requestObserver.onError(Status.CANCELLED.withCause(e).asRuntimeException());
+        }
+        return acked.get();
+    }
+
+    public boolean addReplica(Identifier identifier, Map<String, ByteString> data){
+        AddReplicaRequest request = AddReplicaRequest.newBuilder().setIdentifier(identifier).putAllData(data).build();
         AddReplicaResponse response;
         try {
             response = blockingStub.addReplica(request);
@@ -148,7 +247,7 @@ public class ChordNodeClient {
         return true;
     }
 
-    public boolean addScatteredReplica(Identifier identifier, String key, String value){
+    public boolean addScatteredReplica(Identifier identifier, String key, ByteString value){
         AddScatteredReplicaRequest request = AddScatteredReplicaRequest.newBuilder().setIdentifier(identifier).setKey(key).setValue(value).build();
         AddScatteredReplicaResponse response;
         try {
@@ -160,8 +259,8 @@ public class ChordNodeClient {
         return true;
     }
 
-    public boolean addMultipleScatteredReplica(Identifier identifier, String dataJson){
-        AddMultipleScatteredReplicaRequest request = AddMultipleScatteredReplicaRequest.newBuilder().setIdentifier(identifier).setJsonData(dataJson).build();
+    public boolean addMultipleScatteredReplica(Identifier identifier, Map<String, ByteString> data){
+        AddMultipleScatteredReplicaRequest request = AddMultipleScatteredReplicaRequest.newBuilder().setIdentifier(identifier).putAllData(data).build();
         AddMultipleScatteredReplicaResponse response;
         try {
             response = blockingStub.addMultipleScatteredReplica(request);
@@ -196,6 +295,31 @@ public class ChordNodeClient {
         return true;
     }
 
+    //    hashes in the order of nodes, null when the call failed
+    public List<Long> replicaDigest(Identifier identifier, List<Integer> nodes){
+        ReplicaDigestRequest request = ReplicaDigestRequest.newBuilder().setIdentifier(identifier).addAllNodes(nodes).build();
+        ReplicaDigestResponse response;
+        try {
+            response = blockingStub.replicaDigest(request);
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+            return null;
+        }
+        return response.getHashesList();
+    }
+
+    //    one page, cursor null for the first; null when the call failed
+    public ReplicaLeafEntriesResponse replicaLeafEntries(Identifier identifier, List<Integer> leaves, LeafEntriesCursor cursor, int maxBytes){
+        ReplicaLeafEntriesRequest.Builder request = ReplicaLeafEntriesRequest.newBuilder().setIdentifier(identifier).addAllLeaves(leaves).setMaxBytes(maxBytes);
+        if (cursor != null) request.setCursor(cursor);
+        try {
+            return blockingStub.replicaLeafEntries(request.build());
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+            return null;
+        }
+    }
+
     public int measureDistance(int ID, int count, int startPoint){
         MeasureDistanceRequest request = MeasureDistanceRequest.newBuilder().setID(ID).setCount(count).setStartPoint(startPoint).build();
         MeasureDistanceResponse response;
@@ -209,6 +333,10 @@ public class ChordNodeClient {
         return response.getDistance();
     }
     public boolean put(String key, String val){
+        return put(key, ByteString.copyFromUtf8(val));
+    }
+
+    public boolean put(String key, ByteString val){
         PutRequest request = PutRequest.newBuilder().setKey(key).setValue(val).build();
         PutResponse putResponse;
         try {
@@ -222,16 +350,44 @@ public class ChordNodeClient {
     }
 
     public String get(String key){
+        ByteString value = getBytes(key);
+        return value == null ? null : value.toStringUtf8();
+    }
+
+    public ByteString getBytes(String key){
+        GetResponse getResponse = getWithStatus(key);
+        return getResponse != null && getResponse.getRet() == ReturnCode.SUCCESS ? getResponse.getValue() : null;
+    }
+
+    //    null when the node could not be reached, FAILURE for a missing key, NOT_OWNER for a key outside its range
+    public GetResponse getWithStatus(String key){
         GetRequest request = GetRequest.newBuilder().setKey(key).build();
-        GetResponse getResponse;
         try {
-            getResponse = blockingStub.get(request);
+            return blockingStub.get(request);
         } catch (StatusRuntimeException e) {
             logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
             return null;
         }
+    }
 
-        return getResponse.getRet() == ReturnCode.SUCCESS ? getResponse.getValue() : null;
+    public ListenableFuture<MultiPutResponse> multiPutFuture(List<KeyValue> entries){
+        MultiPutRequest request = MultiPutRequest.newBuilder().addAllEntries(entries).build();
+        return futureStub.multiPut(request);
+    }
+
+    public ListenableFuture<MultiGetResponse> multiGetFuture(List<String> keys){
+        MultiGetRequest request = MultiGetRequest.newBuilder().addAllKey(keys).build();
+        return futureStub.multiGet(request);
+    }
+
+    public ListenableFuture<GetResponse> getFuture(String key, boolean allowReplica){
+        GetRequest request = GetRequest.newBuilder().setKey(key).setAllowReplica(allowReplica).build();
+        return futureStub.get(request);
+    }
+
+    public ListenableFuture<GetResponse> getRangeFuture(String key, long offset, int length, boolean allowReplica){
+        GetRangeRequest request = GetRangeRequest.newBuilder().setKey(key).setOffset(offset).setLength(length).setAllowReplica(allowReplica).build();
+        return futureStub.getRange(request);
     }
 
     public String tellMeFingerTable() {
@@ -271,8 +427,19 @@ public class ChordNodeClient {
         return response.getNumber();
     }
 
+    //    includeData adds a dump of every stored key and value, for admin use only
+    public InquireStatusResponse inquireStatus(boolean includeData) {
+        InquireStatusRequest request = InquireStatusRequest.newBuilder().setIncludeData(includeData).build();
+        try {
+            return blockingStub.inquireStatus(request);
+        } catch (StatusRuntimeException e) {
+            logger.log(Level.WARNING, "RPC failed: {0}", e.getStatus());
+            return null;
+        }
+    }
+
     public FindSuccessorIterativelyResponse findSuccessorIteratively(int id) {
-        FindSuccessorIterativelyRequest request = FindSuccessorIterativelyRequest.newBuilder().build();
+        FindSuccessorIterativelyRequest request = FindSuccessorIterativelyRequest.newBuilder().setID(id).build();
         FindSuccessorIterativelyResponse response;
 
         try {
@@ -312,6 +479,11 @@ public class ChordNodeClient {
 
 
     public void close() {
-        this.channel.shutdownNow();
+        if (!closed.compareAndSet(false, true)) return;
+        if (pooledHost != null) {
+            ChannelPool.getInstance().release(pooledHost, pooledPort);
+        } else {
+            this.channel.shutdownNow();
+        }
     }
 }
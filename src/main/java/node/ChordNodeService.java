@@ -1,55 +1,83 @@
 package node;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import common.Hasher;
-import common.IdentifierWithHop;
-import common.JsonUtil;
 import io.grpc.Server;
 import io.grpc.stub.StreamObserver;
 import net.grpc.chord.*;
+import storage.HashTreeStore;
+import storage.RingHashTree;
+import storage.RingOrderedStore;
+import storage.StorageEngines;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongFunction;
 import java.util.logging.Logger;
 
 public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplBase {
 
     private static final Logger logger =Logger.getLogger(ChordNodeService.class.getName());
-    private Map<String, String> hashMap;
-    private Map<Integer, Map<String, String>> replica;
+    private HashTreeStore primary;
+    private Map<Integer, HashTreeStore> replica;
     private int selfID;
     private int ringSizeExp;
-    private static int sucListSize = 3;
+    public static final int sucListSize = 3;
+    private static final int HANDOFF_CHUNK_KEYS = 1024;
+    private static final int HANDOFF_CHUNK_BYTES = 1 << 20;
+    private static final int HANDOFF_WINDOW = 4;
+    private static final int HANDOFF_ATTEMPTS = 3;
+    private static final long HANDOFF_TIMEOUT_MILLIS = 10000;
+    private static final int FINGERS_PER_ROUND = 4;
+    private static final long FINGER_LOOKUP_TIMEOUT_MILLIS = 2000;
     private String selfIP;
     private int selfPort;
     protected Identifier[] fingerTable;
     protected Identifier[] successorsList;
     protected Identifier predecessor;
+//    predecessor first, then up to sucListSize nodes before it, refreshed by inspectRedundancy
+    private volatile List<Identifier> predecessorsList = new ArrayList<>();
     protected int next;
     private Hasher hasher;
     private Server server;
-    protected StabilizeTask stabilizeTask;
-    protected CheckPredecessorTask checkPredecessorTask;
-    protected FixFingersTask fixFingersTask;
-    protected InspectRedundancyTask inspectRedundancyTask;
-    protected PrintStatusTask printStatusTask;
+    private PeerLivenessTable livenessTable;
+    private ReplicationPipeline replicationPipeline;
+//    highest applied sequence of every incoming handoff that has neither completed nor failed
+    private Map<String, Long> handoffProgress = new ConcurrentHashMap<>();
+    protected MaintenanceScheduler maintenance;
 
 
     public ChordNodeService(int selfID, String selfIP, int selfPort, int ringSizeExp){
-        hashMap = new ConcurrentHashMap<>();
+        hasher = new Hasher(1 << ringSizeExp);
+        primary = new HashTreeStore(StorageEngines.open(hasher, "node-" + selfPort), hasher);
         replica = new ConcurrentHashMap<>();
         this.fingerTable = new Identifier[ringSizeExp];
         this.successorsList = new Identifier[sucListSize];
         this.selfID = selfID;
         this.selfIP = selfIP;
         this.selfPort = selfPort;
-        hasher = new Hasher(1 << ringSizeExp);
         this.ringSizeExp = ringSizeExp;
+        this.livenessTable = new PeerLivenessTable();
+        this.replicationPipeline = new ReplicationPipeline(generateSelfIdentifier(), livenessTable);
     }
 
     public void setServer(Server server) {
         this.server = server;
     }
 
+    public void setLivenessFreshnessMillis(long freshnessMillis) {
+        this.livenessTable.setFreshnessMillis(freshnessMillis);
+    }
+
+    public void setReplicationAckPolicy(ReplicationPipeline.AckPolicy ackPolicy) {
+        this.replicationPipeline.setAckPolicy(ackPolicy);
+    }
+
     @Override
     public void notify(NotifyRequest request, StreamObserver<NotifyResponse> responseObserver) {
         int senderID = request.getIdentifier().getID();
@@ -59,13 +87,11 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         if (predecessor == null || (inRange(senderID, predecessor.getID(), selfID) && predecessor.getID() != senderID)) {
             if (predecessor == null) predecessor = Identifier.newBuilder().build();
             predecessor = predecessor.toBuilder().setID(senderID).setIP(address).setPort(port).build();
-            ChordNodeClient predecessorClient = new ChordNodeClient(predecessor.getIP(), predecessor.getPort());
             List<String> keyList = generateExpiredKeyList(predecessor.getID());
-            String dataJson = generateDataJsonAndDeleteLocal(keyList);
-            predecessorClient.acceptMyData(dataJson);
-            predecessorClient.close();
-            removePartialDataFromReplicas(keyList);
+            List<String> handedOff = handOffKeys(predecessor, keyList);
+            removePartialDataFromReplicas(handedOff);
             inheritFailedPredecessorsData(senderID);
+            if (maintenance != null) maintenance.churn();
         }
         NotifyResponse response = NotifyResponse.newBuilder().build();
 
@@ -113,12 +139,32 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
             int searchedID = request.getID();
             Identifier nextIdentifier = closestPrecedingFinger(searchedID);
 
+//            forward without blocking this handler thread, the downstream answer completes our caller
             ChordNodeClient client = new ChordNodeClient(nextIdentifier.getIP(), nextIdentifier.getPort());
-            IdentifierWithHop searchedIdentifierWithHop = client.findSuccessorWithHop(searchedID, newHop);
-            client.close();
+            client.findSuccessorAsync(searchedID, newHop, new StreamObserver<FindSuccessorResponse>() {
+                @Override
+                public void onNext(FindSuccessorResponse response) {
+                    livenessTable.markAlive(nextIdentifier);
+                    responseObserver.onNext(response);
+                }
 
-            FindSuccessorResponse response = FindSuccessorResponse.newBuilder().setIdentifier(searchedIdentifierWithHop.identifier).setHop(searchedIdentifierWithHop.hop).build();
-            responseObserver.onNext(response);
+                @Override
+                public void onError(Throwable t) {
+                    logger.warning(String.format("Forwarding findSuccessor(%d) to %d failed: %s", searchedID, nextIdentifier.getID(), t.getMessage()));
+                    livenessTable.markSuspected(nextIdentifier);
+                    client.close();
+                    Identifier failed = Identifier.newBuilder().setID(-1).build();
+                    responseObserver.onNext(FindSuccessorResponse.newBuilder().setIdentifier(failed).setHop(-1).build());
+                    responseObserver.onCompleted();
+                }
+
+                @Override
+                public void onCompleted() {
+                    client.close();
+                    responseObserver.onCompleted();
+                }
+            });
+            return;
         }
         responseObserver.onCompleted();
     }
@@ -185,17 +231,21 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
             logger.info("Creating client for stabilize on successor");
             ChordNodeClient successorClient = new ChordNodeClient(successor.getIP(), successor.getPort());
             Identifier successorPredecessor = successorClient.inquirePredecessor();
+            livenessTable.record(successor, successorPredecessor != null);
 
             if (successorPredecessor != null && !successorPredecessor.getIP().equals("") && inRange(successorPredecessor.getID(), selfID, successor.getID())) {
                 successorClient.close();
 
                 successorClient = new ChordNodeClient(successorPredecessor.getIP(), successorPredecessor.getPort());
-                if (successorClient.ping()) {
+                boolean alive = successorClient.ping();
+                livenessTable.record(successorPredecessor, alive);
+                if (alive) {
                     this.fingerTable[0] = successorPredecessor;
 
                     maintainFirstReplica(this.successorsList[0], this.fingerTable[0]);
                     this.successorsList[0] = this.fingerTable[0];
                 } else  {
+                    successorClient.close();
                     successorClient = new ChordNodeClient(successor.getIP(), successor.getPort());
                 }
             }
@@ -205,32 +255,40 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         }
 
         updateSuccessorsList();
-
-        printKeyValue();
-        printReplica();
     }
 
     private Identifier getAliveSuccessor() {
         for (int i = 0;i < sucListSize;i++) {
             Identifier curSuccessor = this.successorsList[i];
-            ChordNodeClient client = new ChordNodeClient(curSuccessor.getIP(), curSuccessor.getPort());
-            if (client.ping()) {
-                client.close();
+            if (!validIdentifier(curSuccessor)) continue;
+            if (isAlive(curSuccessor)) {
                 return curSuccessor;
             }
-
-            client.close();
         }
 
         return generateSelfIdentifier();
     }
 
+    //    answer from the liveness table while the last observation is fresh, probe otherwise
+    private boolean isAlive(Identifier identifier) {
+        if (identifier.getID() == selfID) return true;
+        if (livenessTable.isFreshlyAlive(identifier)) return true;
+        if (livenessTable.isFreshlySuspected(identifier)) return false;
+        return probe(identifier);
+    }
+
+    private boolean probe(Identifier identifier) {
+        ChordNodeClient client = new ChordNodeClient(identifier.getIP(), identifier.getPort());
+        boolean alive = client.ping();
+        client.close();
+        livenessTable.record(identifier, alive);
+        return alive;
+    }
+
     private void checkPredecessor(){
         if (this.predecessor != null && this.predecessor.getID() != -1) {
             logger.info("Creating client for checkPredecessor");
-            ChordNodeClient predecessorClient = new ChordNodeClient(this.predecessor.getIP(), this.predecessor.getPort());
-            boolean alive = predecessorClient.ping();
-            predecessorClient.close();
+            boolean alive = probe(this.predecessor);
             if (!alive) {
                 Identifier failedPredecessor = this.predecessor;
                 this.predecessor = null;
@@ -282,29 +340,59 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         successorsList.toArray(this.successorsList);
 
         maintainSubsequentReplicas(oldSuccessorList, this.successorsList);
-
-        printSuccessorList();
     }
 
+    //    one call for the predecessor chain, then every replica tag is judged locally: a tag is still
+    //    needed while its owner is one of the sucListSize nodes before us, that is while it lies in
+    //    (predecessor sucListSize + 1, selfID]
     private void inspectRedundancy() {
-        if(predecessor != null){
-            logger.info(String.format("Creating client for measureDistance, to IP:%s Port:%d", predecessor.getIP(), predecessor.getPort()));
-            ChordNodeClient predecessorClient = new ChordNodeClient(predecessor.getIP(), predecessor.getPort());
-            for(int ID : replica.keySet()){
-                int distance = predecessorClient.measureDistance(ID, 0, selfID);
-                if(ID == 854 && selfID == 4757){
-                    System.out.println(ID + " : " + distance);
-                }
-                if(distance != Integer.MAX_VALUE){
-                    if(distance == -1){
-                        replica.remove(ID);
-                    }
-                }
+        Identifier currentPredecessor = predecessor;
+        if (currentPredecessor == null || !validIdentifier(currentPredecessor)) return;
+
+        ChordNodeClient predecessorClient = new ChordNodeClient(currentPredecessor.getIP(), currentPredecessor.getPort());
+        List<Identifier> chain = predecessorClient.inquirePredecessorsList();
+        predecessorClient.close();
+        if (chain == null) return;
+
+        List<Identifier> predecessors = new ArrayList<>();
+        predecessors.add(currentPredecessor);
+        for (Identifier identifier : chain) {
+            if (predecessors.size() > sucListSize) break;
+            predecessors.add(identifier);
+        }
+        this.predecessorsList = predecessors;
+
+//        keep everything until the chain is known, or when it wraps around to us in a small ring
+        if (predecessors.size() <= sucListSize) return;
+        for (Identifier identifier : predecessors) {
+            if (!validIdentifier(identifier) || identifier.getID() == selfID) return;
+        }
+        int farthestID = predecessors.get(sucListSize).getID();
+        for (int tagID : replica.keySet()) {
+            if (!inRange(tagID, farthestID, selfID)) {
+                logger.info(String.format("Dropping replica of %d, it is more than %d nodes behind", tagID, sucListSize));
+                replica.remove(tagID);
             }
-            predecessorClient.close();
         }
     }
 
+    @Override
+    public void inquirePredecessorsList(InquirePredecessorsListRequest request, StreamObserver<InquirePredecessorsListResponse> responseObserver) {
+        InquirePredecessorsListResponse.Builder response = InquirePredecessorsListResponse.newBuilder();
+        Identifier currentPredecessor = predecessor;
+        if (currentPredecessor != null && validIdentifier(currentPredecessor)) {
+            List<Identifier> known = this.predecessorsList;
+//            the rest of the chain is only valid behind the predecessor it was learned from
+            if (!known.isEmpty() && known.get(0).equals(currentPredecessor)) {
+                response.addAllPredecessorsList(known);
+            } else {
+                response.addPredecessorsList(currentPredecessor);
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void inquireSuccessorsList(InquireSuccessorsListRequest request, StreamObserver<InquireSuccessorsListResponse> responseObserver) {
         List<Identifier> sucList = Arrays.asList(this.successorsList);
@@ -317,42 +405,127 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     @Override
     public void put(PutRequest request, StreamObserver<PutResponse> responseObserver) {
         String key = request.getKey();
-        String value = request.getValue();
-        PutResponse response;
+        ByteString value = request.getValue();
 
-        if (!inRange(hasher.hash(key), predecessor.getID(), selfID)) {
-            response = PutResponse.newBuilder().setRet(ReturnCode.FAILURE).build();
-        } else {
-            hashMap.put(key, value);
-            response = PutResponse.newBuilder().setRet(ReturnCode.SUCCESS).build();
-
-//                put to all successors
-            for(Identifier identifier : successorsList){
-//                    verify identifier
-                if(identifier.getID() == -1) continue;
-                ChordNodeClient successorClient = new ChordNodeClient(identifier.getIP(), identifier.getPort());
-                successorClient.addScatteredReplica(generateSelfIdentifier(), key, value);
-                successorClient.close();
+        int keyID = hasher.hash(key);
+
+        if (predecessor == null || !inRange(keyID, predecessor.getID(), selfID)) {
+            PutResponse response = PutResponse.newBuilder().setRet(ReturnCode.NOT_OWNER).build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+            return;
+        }
+
+        primary.put(key, keyID, value);
+//            replicas are shipped by the pipeline, reply as soon as the ack policy is satisfied
+        replicationPipeline.replicate(successorsList, key, value).whenComplete((ignored, t) -> {
+            PutResponse response = PutResponse.newBuilder().setRet(ReturnCode.SUCCESS).build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void multiPut(MultiPutRequest request, StreamObserver<MultiPutResponse> responseObserver) {
+        MultiPutResponse.Builder response = MultiPutResponse.newBuilder();
+        Map<String, ByteString> accepted = new LinkedHashMap<>();
+
+        for (KeyValue entry : request.getEntriesList()) {
+            int keyID = hasher.hash(entry.getKey());
+            if (predecessor == null || !inRange(keyID, predecessor.getID(), selfID)) {
+                response.addRet(ReturnCode.NOT_OWNER);
+            } else {
+                primary.put(entry.getKey(), keyID, entry.getValue());
+                accepted.put(entry.getKey(), entry.getValue());
+                response.addRet(ReturnCode.SUCCESS);
             }
         }
 
+        if (accepted.isEmpty()) {
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+            return;
+        }
 
-        responseObserver.onNext(response);
+        replicationPipeline.replicate(successorsList, accepted).whenComplete((ignored, t) -> {
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void multiGet(MultiGetRequest request, StreamObserver<MultiGetResponse> responseObserver) {
+        MultiGetResponse.Builder response = MultiGetResponse.newBuilder();
+        for (String key : request.getKeyList()) {
+            ByteString value = primary.get(key);
+            if (predecessor != null && !inRange(hasher.hash(key), predecessor.getID(), selfID)) {
+                response.addResults(GetResponse.newBuilder().setRet(ReturnCode.NOT_OWNER));
+            } else if (value == null) {
+                response.addResults(GetResponse.newBuilder().setRet(ReturnCode.FAILURE));
+            } else {
+                response.addResults(GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS));
+            }
+        }
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void getRange(GetRangeRequest request, StreamObserver<GetResponse> responseObserver) {
+        String key = request.getKey();
+        boolean owned = predecessor == null || inRange(hasher.hash(key), predecessor.getID(), selfID);
+        ByteString value = null;
+        if (request.getAllowReplica() || owned) {
+            value = primary.get(key);
+        }
+        if (value == null && request.getAllowReplica()) {
+            value = findInReplicas(key);
+        }
+
+        GetResponse.Builder response = GetResponse.newBuilder();
+        if (value == null && !owned && !request.getAllowReplica()) {
+            response.setRet(ReturnCode.NOT_OWNER);
+        } else if (value == null || request.getOffset() < 0 || request.getLength() < 0 || request.getOffset() > value.size()) {
+            response.setRet(ReturnCode.FAILURE);
+        } else {
+//            substring shares the stored bytes instead of copying them
+            int start = (int) request.getOffset();
+            int end = (int) Math.min(value.size(), start + (long) request.getLength());
+            response.setValue(value.substring(start, end)).setRet(ReturnCode.SUCCESS);
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    private ByteString findInReplicas(String key) {
+        for (HashTreeStore replicaStore : replica.values()) {
+            ByteString value = replicaStore.get(key);
+            if (value != null) return value;
+        }
+        return null;
+    }
+
     @Override
     public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
         String key = request.getKey();
 
-        if (!hashMap.containsKey(key)) {
-            GetResponse response = GetResponse.newBuilder().setRet(ReturnCode.FAILURE).build();
+        if (!request.getAllowReplica() && predecessor != null && !inRange(hasher.hash(key), predecessor.getID(), selfID)) {
+            GetResponse response = GetResponse.newBuilder().setRet(ReturnCode.NOT_OWNER).build();
             responseObserver.onNext(response);
         }
         else {
-            String value = hashMap.get(key);
-            GetResponse response = GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS).build();
-            responseObserver.onNext(response);
+//            the stored bytes go into the response as they are
+            ByteString value = primary.get(key);
+            if (value == null && request.getAllowReplica()) {
+                value = findInReplicas(key);
+            }
+            GetResponse.Builder response = GetResponse.newBuilder();
+            if (value == null) {
+                response.setRet(ReturnCode.FAILURE);
+            } else {
+                response.setValue(value).setRet(ReturnCode.SUCCESS);
+            }
+            responseObserver.onNext(response.build());
         }
         responseObserver.onCompleted();
     }
@@ -382,31 +555,63 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     @Override
     public void transferData(TransferDataRequest request, StreamObserver<TransferDataResponse> responseObserver) {
         int requestID = request.getID();
-        HashMap<String, String> hashMapToTransfer = generateTransferredMap(requestID);
+        Map<String, ByteString> hashMapToTransfer = generateTransferredMap(requestID);
 
-        String dataJson = JsonUtil.serilizable(hashMapToTransfer);
-        TransferDataResponse response = TransferDataResponse.newBuilder().setDataJson(dataJson).build();
+        TransferDataResponse response = TransferDataResponse.newBuilder().putAllData(hashMapToTransfer).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
     @Override
     public void acceptMyData(AcceptMyDataRequest request, StreamObserver<AcceptMyDataResponse> responseObserver) {
-        String dataJson = request.getDataJson();
-        Map<String, String> gotHashMap = JsonUtil.deserilizable(dataJson);
-        for (Map.Entry<String, String> entry : gotHashMap.entrySet()) {
-            hashMap.put(entry.getKey(), entry.getValue());
-        }
-        for (Identifier successor : this.successorsList) {
-            if (successor != null && successor.getID() != -1) {
-                ChordNodeClient client = new ChordNodeClient(successor.getIP(), successor.getPort());
-                client.addMultipleScatteredReplica(generateSelfIdentifier(), dataJson);
-                client.close();
+        Map<String, ByteString> gotHashMap = request.getDataMap();
+        primary.putAll(gotHashMap);
+        replicationPipeline.replicate(successorsList, gotHashMap).whenComplete((ignored, t) -> {
+            AcceptMyDataResponse response = AcceptMyDataResponse.newBuilder().build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public StreamObserver<HandoffChunk> handoffData(StreamObserver<HandoffAck> responseObserver) {
+        return new StreamObserver<HandoffChunk>() {
+            private String transferID;
+//            acks go out in sequence order, each once its chunk reached the successors
+            private CompletableFuture<Void> acked = CompletableFuture.completedFuture(null);
+            private volatile boolean cancelled;
+
+            @Override
+            public void onNext(HandoffChunk chunk) {
+                transferID = chunk.getTransferID();
+                long applied = handoffProgress.getOrDefault(transferID, -1L);
+                CompletableFuture<Void> replicated = CompletableFuture.completedFuture(null);
+//                a resumed stream may resend chunks we already hold
+                if (chunk.getSequence() > applied) {
+                    primary.putAll(chunk.getDataMap());
+                    replicated = replicationPipeline.replicate(successorsList, chunk.getDataMap());
+                    handoffProgress.put(transferID, chunk.getSequence());
+                }
+                HandoffAck ack = HandoffAck.newBuilder().setTransferID(transferID).setSequence(chunk.getSequence()).build();
+                CompletableFuture<Void> replicatedChunk = replicated;
+                acked = acked.thenCompose(ignored -> replicatedChunk.handle((v, t) -> null)).thenRun(() -> {
+                    if (!cancelled) responseObserver.onNext(ack);
+                });
             }
-        }
-        AcceptMyDataResponse response = AcceptMyDataResponse.newBuilder().build();
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+
+            @Override
+            public void onError(Throwable t) {
+                cancelled = true;
+                if (transferID != null) handoffProgress.remove(transferID);
+                logger.warning("Incoming handoff " + transferID + " interrupted: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                if (transferID != null) handoffProgress.remove(transferID);
+                acked.whenComplete((v, t) -> responseObserver.onCompleted());
+            }
+        };
     }
 
     @Override
@@ -423,9 +628,9 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     @Override
     public void addReplica(AddReplicaRequest request, StreamObserver<AddReplicaResponse> responseObserver) {
         int requestTagID = request.getIdentifier().getID();
-        String dataJson = request.getJsonData();
-        Map<String, String> hashMapToAdd = JsonUtil.deserilizable(dataJson);
-        this.replica.put(requestTagID, hashMapToAdd);
+        HashTreeStore replicaStore = newReplicaStore();
+        replicaStore.putAll(request.getDataMap());
+        this.replica.put(requestTagID, replicaStore);
 
         AddReplicaResponse response = AddReplicaResponse.newBuilder().build();
         responseObserver.onNext(response);
@@ -435,12 +640,9 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     @Override
     public void addScatteredReplica(AddScatteredReplicaRequest request, StreamObserver<AddScatteredReplicaResponse> responseObserver){
         String key = request.getKey();
-        String value = request.getValue();
+        ByteString value = request.getValue();
         int requestTagID = request.getIdentifier().getID();
-        if(replica.get(requestTagID) == null){
-            replica.put(requestTagID, new HashMap<>());
-        }
-        replica.get(requestTagID).put(key, value);
+        replica.computeIfAbsent(requestTagID, k -> newReplicaStore()).put(key, value);
 
         AddScatteredReplicaResponse response = AddScatteredReplicaResponse.newBuilder().build();
         responseObserver.onNext(response);
@@ -449,13 +651,8 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
 
     @Override
     public void addMultipleScatteredReplica(AddMultipleScatteredReplicaRequest request, StreamObserver<AddMultipleScatteredReplicaResponse> responseObserver) {
-        String dataJson = request.getJsonData();
         int requestTagID = request.getIdentifier().getID();
-        Map<String, String> hashmapToAdd = JsonUtil.deserilizable(dataJson);
-        if(replica.get(requestTagID) == null){
-            replica.put(requestTagID, new HashMap<>());
-        }
-        replica.get(requestTagID).putAll(hashmapToAdd);
+        replica.computeIfAbsent(requestTagID, k -> newReplicaStore()).putAll(request.getDataMap());
 
         AddMultipleScatteredReplicaResponse response = AddMultipleScatteredReplicaResponse.newBuilder().build();
         responseObserver.onNext(response);
@@ -475,6 +672,39 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         responseObserver.onCompleted();
     }
 
+    @Override
+    public void replicaDigest(ReplicaDigestRequest request, StreamObserver<ReplicaDigestResponse> responseObserver) {
+        HashTreeStore replicaStore = replica.get(request.getIdentifier().getID());
+        ReplicaDigestResponse.Builder response = ReplicaDigestResponse.newBuilder();
+        for (int node : request.getNodesList()) {
+            response.addHashes(replicaStore == null ? 0 : replicaStore.tree().hash(node));
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void replicaLeafEntries(ReplicaLeafEntriesRequest request, StreamObserver<ReplicaLeafEntriesResponse> responseObserver) {
+        HashTreeStore replicaStore = replica.get(request.getIdentifier().getID());
+        ReplicaLeafEntriesResponse.Builder response = ReplicaLeafEntriesResponse.newBuilder();
+        if (replicaStore != null) {
+            RingHashTree.Cursor from = request.hasCursor() ? new RingHashTree.Cursor(request.getCursor().getIndex(), request.getCursor().getAfterKey()) : null;
+//            the caller may ask for smaller pages, never for larger ones
+            int maxBytes = request.getMaxBytes() > 0 ? Math.min(request.getMaxBytes(), ReplicaSync.MAX_PAGE_BYTES) : ReplicaSync.MAX_PAGE_BYTES;
+            RingHashTree.Page page = replicaStore.tree().page(request.getLeavesList(), from, maxBytes);
+            response.putAllEntryHashes(page.getEntries());
+            if (page.getNext() != null) {
+                response.setNext(LeafEntriesCursor.newBuilder().setIndex(page.getNext().getIndex()).setAfterKey(page.getNext().getAfterKey()));
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    private HashTreeStore newReplicaStore() {
+        return new HashTreeStore(new RingOrderedStore(hasher), hasher);
+    }
+
 
 
     public void start(int id, String ip, int port){
@@ -484,78 +714,65 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
             join(identifier);
         }
 
-        this.next = 0;
-        Timer timer = new Timer();
-
-        this.stabilizeTask = new StabilizeTask();
-        timer.schedule(stabilizeTask, 1000, 500);
-
-        this.checkPredecessorTask = new CheckPredecessorTask();
-        timer.schedule(checkPredecessorTask, 1000, 500);
-
-        this.fixFingersTask = new FixFingersTask();
-        timer.schedule(fixFingersTask, 1000, 500);
-
-        this.inspectRedundancyTask = new InspectRedundancyTask();
-        timer.schedule(inspectRedundancyTask, 1000, 2000);
-
-        this.printStatusTask = new PrintStatusTask();
-        timer.schedule(printStatusTask, 1000, 500);
+        startMaintenance();
     }
 
-    private void printFingerTable() {
-        logger.info("Current Node ID:" + selfID);
-        logger.info("||index || value");
-
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0;i < ringSizeExp;i++) {
-            sb.append(String.format("||   %d   || %d\n", i, fingerTable[i].getID()));
-        }
-        System.out.println(sb.toString());
+    //    intervals start at the old fixed periods and back off while the ring is stable
+    protected void startMaintenance() {
+        this.next = 0;
+        this.maintenance = new MaintenanceScheduler("node " + selfID);
+        maintenance.schedule("stabilize", this::stabilizeRound, 500, 8000, 1000);
+        maintenance.schedule("checkPredecessor", this::checkPredecessorRound, 500, 4000, 1000);
+        maintenance.schedule("fixFingers", this::fixFingersRound, 500, 8000, 1000);
+        maintenance.schedule("inspectRedundancy", this::inspectRedundancyRound, 2000, 16000, 1000);
+        maintenance.schedule("logStatus", this::logStatusRound, 500, 8000, 1000);
     }
 
-    private void printKeyValue() {
-        logger.info("||key || value");
-
-        StringBuilder sb = new StringBuilder();
-        for (String key : hashMap.keySet()) {
-            sb.append(String.format("||%s  || %s\n", key, hashMap.get(key)));
+    //    counts and ring state only, cheap enough for every status round whatever the data size
+    private String statusLine() {
+        StringBuilder successorIDs = new StringBuilder();
+        for (Identifier successor : successorsList) {
+            successorIDs.append(successor == null ? -1 : successor.getID()).append(' ');
         }
-        System.out.println(sb.toString());
+        return String.format("node %d: predecessor %d, successors [%s], primary %d keys, replicas %d keys under %d tags",
+                selfID, predecessor == null ? -1 : predecessor.getID(), successorIDs.toString().trim(),
+                primary.size(), replicaKeyCount(), replica.size());
     }
 
-    private void printReplica() {
-//            logger.info("||ID || value");
-
-        System.out.println("||ID || value\n"+this.replica);
+    private int replicaKeyCount() {
+        int replicaKeys = 0;
+        for (HashTreeStore replicaStore : replica.values()) {
+            replicaKeys += replicaStore.size();
+        }
+        return replicaKeys;
     }
 
-    private void printSuccessorList() {
-//            logger.info("||index || value");
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("||index || value\n");
-        for (int i = 0;i < sucListSize;i++) {
-            sb.append(String.format("||   %d   || %d\n", i, successorsList[i].getID()));
-        }
-        System.out.println(sb.toString());
+    @Override
+    public void inquireStatus(InquireStatusRequest request, StreamObserver<InquireStatusResponse> responseObserver) {
+        InquireStatusResponse.Builder response = InquireStatusResponse.newBuilder()
+                .setID(selfID)
+                .addAllSuccessorsList(Arrays.asList(successorsList))
+                .setPrimaryKeys(primary.size())
+                .setReplicaTags(replica.size())
+                .setReplicaKeys(replicaKeyCount());
+        Identifier currentPredecessor = predecessor;
+        if (currentPredecessor != null) response.setPredecessor(currentPredecessor);
+        if (request.getIncludeData()) response.setData(dumpStatus());
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
     }
 
-    private void printStatus(){
-//            print all status related to this node
+    //    every stored key and value, only built when an admin asks for it
+    private String dumpStatus(){
         String tabToken = "----";
         StringBuilder sb = new StringBuilder();
         sb.append("All status of this node\n");
         sb.append("Primary Storage\n");
-        for (String key : this.hashMap.keySet()) {
-            sb.append(String.format("||%s  || %s\n", key, this.hashMap.get(key)));
-        }
+        this.primary.forEach((key, value) -> sb.append(String.format("||%s  || %s\n", key, value.toStringUtf8())));
         sb.append("Replica Storage\n");
         for (int tagID : this.replica.keySet()) {
             sb.append("replica_" + tagID + "\n");
-            for (String key : this.replica.get(tagID).keySet()) {
-                sb.append(String.format("%s||%s  || %s\n", tabToken, key, this.replica.get(tagID).get(key)));
-            }
+            this.replica.get(tagID).forEach((key, value) -> sb.append(String.format("%s||%s  || %s\n", tabToken, key, value.toStringUtf8())));
         }
         sb.append("Predecessor: " + (this.predecessor == null ? "null" : this.predecessor.getID()) + "\n");
         sb.append("SuccessorsList:\n");
@@ -563,7 +780,7 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         for (int i = 0;i < sucListSize;i++) {
             sb.append(String.format("||   %d   || %d\n", i, successorsList[i].getID()));
         }
-        System.out.println(sb.toString());
+        return sb.toString();
     }
 
     private Identifier closestPrecedingFinger(int id) {
@@ -572,69 +789,162 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
                 continue;
             }
 
-            if (inRange(fingerTable[i].getID(), selfID, id)) {
-                ChordNodeClient client = new ChordNodeClient(fingerTable[i].getIP(), fingerTable[i].getPort());
-
-                if (client.ping()) {
-                    client.close();
-                    return fingerTable[i];
-                }
-
-                client.close();
+            if (inRange(fingerTable[i].getID(), selfID, id) && isAlive(fingerTable[i])) {
+                return fingerTable[i];
             }
         }
 
         return generateSelfIdentifier();
     }
 
+    //    refreshes the next FINGERS_PER_ROUND fingers, cycling through the table forever. Fingers within
+    //    our own range or our successor's are answered here, the rest are looked up in parallel starting
+    //    at the closest preceding finger. Consecutive fingers that pointed at the same node wait for the
+    //    first one's answer and take it when their start lies between that finger's start and its node.
     private void fixFingers() {
-        if (this.next < 500) {
-            this.next = this.next + 1;
+        Identifier successor = getAliveSuccessor();
+        Identifier[] previous = Arrays.copyOf(fingerTable, fingerTable.length);
+        Set<Integer> refreshed = new HashSet<>();
+        List<Integer> lookups = new ArrayList<>();
+        Map<Integer, Integer> sharing = new HashMap<>();
+
+        for (int round = 0; round < FINGERS_PER_ROUND; round++) {
+            int index = this.next;
+            this.next = (this.next + 1) % ringSizeExp;
+
+            Identifier known = resolveLocally(fingerStart(index), successor);
+            if (known != null) {
+                fingerTable[index] = known;
+                refreshed.add(index);
+                continue;
+            }
+            int lastLookup = lookups.isEmpty() ? -1 : lookups.get(lookups.size() - 1);
+            if (lastLookup >= 0 && validIdentifier(previous[index]) && previous[index].equals(previous[lastLookup])) {
+                sharing.put(index, lastLookup);
+            } else {
+                lookups.add(index);
+            }
+        }
 
-            ChordNodeClient selfClient = new ChordNodeClient(selfIP, selfPort);
-            Identifier searchedIdentifier = selfClient.findSuccessor((selfID + (1 << (this.next % ringSizeExp))) % (1 << ringSizeExp));
+        refreshed.addAll(lookUpFingers(lookups, successor));
+        List<Integer> uncovered = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : sharing.entrySet()) {
+            int index = entry.getKey();
+            int sharedWith = entry.getValue();
+            if (refreshed.contains(sharedWith) && coveredBy(fingerStart(index), sharedWith)) {
+                fingerTable[index] = fingerTable[sharedWith];
+                refreshed.add(index);
+            } else {
+                uncovered.add(index);
+            }
+        }
+        refreshed.addAll(lookUpFingers(uncovered, successor));
 
-            selfClient.close();
+//        fingers right after this round that the last one already covers need no lookup next round
+        int last = (this.next - 1 + ringSizeExp) % ringSizeExp;
+        while (this.next != 0 && refreshed.contains(last) && coveredBy(fingerStart(this.next), last)) {
+            fingerTable[this.next] = fingerTable[last];
+            this.next = (this.next + 1) % ringSizeExp;
+        }
+    }
 
-            this.fingerTable[this.next % ringSizeExp] = searchedIdentifier;
+    //    resolves the fingers at the same time, returns the ones that got an answer,
+    //    a failed lookup keeps the old entry for the next pass
+    private Set<Integer> lookUpFingers(List<Integer> indexes, Identifier successor) {
+        Set<Integer> found = new HashSet<>();
+        if (indexes.isEmpty()) return found;
+
+        Map<Integer, ListenableFuture<FindSuccessorResponse>> lookups = new LinkedHashMap<>();
+        List<ChordNodeClient> clients = new ArrayList<>();
+        for (int index : indexes) {
+            int start = fingerStart(index);
+            Identifier target = closestPrecedingFinger(start);
+            if (target.getID() == selfID) target = successor;
+            ChordNodeClient client = new ChordNodeClient(target.getIP(), target.getPort());
+            clients.add(client);
+            ListenableFuture<FindSuccessorResponse> lookup = client.findSuccessorFuture(start);
+            if (lookup != null) lookups.put(index, lookup);
+        }
+        for (Map.Entry<Integer, ListenableFuture<FindSuccessorResponse>> lookup : lookups.entrySet()) {
+            Identifier answer = awaitFinger(lookup.getValue());
+            if (answer != null) {
+                fingerTable[lookup.getKey()] = answer;
+                found.add(lookup.getKey());
+            }
+        }
+        for (ChordNodeClient client : clients) client.close();
+        return found;
+    }
 
-            printFingerTable();
+    private Identifier awaitFinger(ListenableFuture<FindSuccessorResponse> lookup) {
+        try {
+            Identifier answer = lookup.get(FINGER_LOOKUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).getIdentifier();
+            return validIdentifier(answer) && !answer.getIP().equals("") ? answer : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            lookup.cancel(true);
+            logger.warning("Finger lookup failed: " + e.getMessage());
+            return null;
         }
     }
 
+    private int fingerStart(int index) {
+        return (selfID + (1 << index)) % (1 << ringSizeExp);
+    }
 
-    class StabilizeTask extends TimerTask {
-        public void run() {
-            stabilize();
-            logger.info(String.format("Successor : %d", getAliveSuccessor().getID()));
-        }
+    //    the successor of id when this node can tell without asking anyone, null otherwise
+    private Identifier resolveLocally(int id, Identifier successor) {
+        if (predecessor != null && inRange(id, predecessor.getID(), selfID)) return generateSelfIdentifier();
+        if (inRange(id, selfID, successor.getID())) return successor;
+        return null;
     }
 
-    class CheckPredecessorTask extends TimerTask {
-        public void run() {
-            checkPredecessor();
-            logger.info(String.format("Predecessor : %d", predecessor == null ? -1 : predecessor.getID()));
-        }
+    //    whether start lies in [start of finger index, node of finger index]
+    private boolean coveredBy(int start, int index) {
+        Identifier finger = fingerTable[index];
+        if (!validIdentifier(finger)) return false;
+        int fingerStart = fingerStart(index);
+        int ringSize = 1 << ringSizeExp;
+        return inRange(start, (fingerStart - 1 + ringSize) % ringSize, finger.getID());
     }
 
-    class FixFingersTask extends TimerTask {
-        public void run() {
-            fixFingers();
-            logger.info(String.format("Predecessor : %d", predecessor == null ? -1 : predecessor.getID()));
-        }
+
+    //    maintenance rounds, each returns true when it saw the ring change
+    private boolean stabilizeRound() {
+        Identifier[] before = Arrays.copyOf(successorsList, successorsList.length);
+        stabilize();
+        logger.info(String.format("Successor : %d", getAliveSuccessor().getID()));
+        return !Arrays.equals(before, successorsList);
     }
 
-    class PrintStatusTask extends TimerTask {
-        public void run() {
-            printStatus();
-            logger.info(String.format("Predecessor : %d", predecessor == null ? -1 : predecessor.getID()));
-        }
+    private boolean checkPredecessorRound() {
+        Identifier before = predecessor;
+        checkPredecessor();
+        logger.info(String.format("Predecessor : %d", predecessor == null ? -1 : predecessor.getID()));
+        return !Objects.equals(before, predecessor);
     }
 
-    class InspectRedundancyTask extends TimerTask {
-        public void run() {
-            inspectRedundancy();
-        }
+    private boolean fixFingersRound() {
+        Identifier[] before = Arrays.copyOf(fingerTable, fingerTable.length);
+        fixFingers();
+        logger.info(String.format("Predecessor : %d", predecessor == null ? -1 : predecessor.getID()));
+        return !Arrays.equals(before, fingerTable);
+    }
+
+    private boolean logStatusRound() {
+        logger.info(statusLine());
+        return false;
+    }
+
+    private boolean inspectRedundancyRound() {
+        List<Identifier> chainBefore = predecessorsList;
+        Set<Integer> tagsBefore = new HashSet<>(replica.keySet());
+        inspectRedundancy();
+//        anti-entropy repairs keep the copies in step, they are not a change of the ring
+        syncReplicas();
+        return !chainBefore.equals(predecessorsList) || !tagsBefore.equals(replica.keySet());
     }
 
     protected void maintainFirstReplica(Identifier oldSuccessor, Identifier newSuccessor) {
@@ -643,9 +953,8 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
 
         if (newSuccessor != null && newSuccessor.getID() != -1 && newSuccessor.getID() != selfID) {
             ChordNodeClient newSuccessorClient = new ChordNodeClient(newSuccessor.getIP(), newSuccessor.getPort());
-            String dataJson = JsonUtil.serilizable(hashMap);
             if(newSuccessorClient.ping()){
-                newSuccessorClient.addReplica(generateSelfIdentifier(), dataJson);
+                syncReplica(newSuccessorClient);
             }
             newSuccessorClient.close();
         }
@@ -664,9 +973,9 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         oldSet.removeAll(newSet);
         newSet.removeAll(tmp);
 
-        System.out.println("Old to remove and New to add");
-        System.out.println(oldSet);
-        System.out.println(newSet);
+        if (!oldSet.isEmpty() || !newSet.isEmpty()) {
+            logger.fine(String.format("Successors of %d changed, removed %s, added %s", selfID, oldSet, newSet));
+        }
 
 
 //            for(Identifier identifier : oldSet){
@@ -681,14 +990,33 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         for (Identifier identifier : newSet) {
             if(identifier.getID() == -1 || identifier.getID() == selfID)continue;
             ChordNodeClient newSuccessorClient = new ChordNodeClient(identifier.getIP(), identifier.getPort());
-            String dataJson = JsonUtil.serilizable(hashMap);
             if(newSuccessorClient.ping()){
-                newSuccessorClient.addReplica(generateSelfIdentifier(), dataJson);
+                syncReplica(newSuccessorClient);
             }
             newSuccessorClient.close();
         }
     }
 
+    //    anti-entropy round with every successor, one digest call each while replicas are in sync,
+    //    returns true when a replica had to be repaired
+    private boolean syncReplicas() {
+        Set<Integer> synced = new HashSet<>();
+        boolean repaired = false;
+        for (Identifier identifier : successorsList) {
+            if (!validIdentifier(identifier) || identifier.getID() == selfID || !synced.add(identifier.getID())) continue;
+            ChordNodeClient successorClient = new ChordNodeClient(identifier.getIP(), identifier.getPort());
+            repaired |= syncReplica(successorClient);
+            successorClient.close();
+        }
+        return repaired;
+    }
+
+    //    brings the successor's replica of our data in line with primary, see {@link ReplicaSync},
+    //    returns true when something was shipped or removed
+    private boolean syncReplica(ChordNodeClient successorClient) {
+        return new ReplicaSync(primary, generateSelfIdentifier(), successorClient).run();
+    }
+
     private void removePartialDataFromReplicas(List<String> keyList){
         Identifier selfIdentifier = generateSelfIdentifier();
 
@@ -700,12 +1028,11 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
         }
     }
 
-    private void addHashMapReplicaToOneReplica(Identifier targetIdentifier, Map<String, String> addedHashMap){
+    private void addHashMapReplicaToOneReplica(Identifier targetIdentifier, Map<String, ByteString> addedHashMap){
         if(addedHashMap.size() != 0 && validIdentifier(targetIdentifier)){
             ChordNodeClient targetClient = new ChordNodeClient(targetIdentifier.getIP(), targetIdentifier.getPort());
             if(targetClient.ping()){
-                String dataJson = JsonUtil.serilizable(addedHashMap);
-                targetClient.addMultipleScatteredReplica(generateSelfIdentifier(), dataJson);
+                targetClient.addMultipleScatteredReplica(generateSelfIdentifier(), addedHashMap);
             }
             targetClient.close();
         }
@@ -714,9 +1041,10 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
 
     private void inheritPredecessorData(int failedPredecessorID){
         logger.info(String.format("Inheriting data from %d", failedPredecessorID));
-        hashMap.putAll(replica.get(failedPredecessorID));
-        Map<String, String> addedHashMap = replica.get(failedPredecessorID);
-        replica.remove(failedPredecessorID);
+        HashTreeStore inherited = replica.remove(failedPredecessorID);
+        if (inherited == null) return;
+        Map<String, ByteString> addedHashMap = inherited.snapshot();
+        primary.putAll(addedHashMap);
 
 //            update last replica to have data of failed one
         Identifier lastSuccessor = successorsList[successorsList.length-1];
@@ -726,12 +1054,14 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     private void inheritFailedPredecessorsData(int newPredecessorID){
         logger.info(String.format("Inheriting data since %d", newPredecessorID));
 //            all data inherited from failed nodes
-        Map<String, String> addedHashMap = new HashMap<>();
+        Map<String, ByteString> addedHashMap = new HashMap<>();
         for(int replicaTagID : replica.keySet()){
             if(inRange(replicaTagID, newPredecessorID, selfID)){
-                hashMap.putAll(replica.get(replicaTagID));
-                addedHashMap.putAll(replica.get(replicaTagID));
-                replica.remove(replicaTagID);
+                HashTreeStore inheritedStore = replica.remove(replicaTagID);
+                if (inheritedStore == null) continue;
+                Map<String, ByteString> inherited = inheritedStore.snapshot();
+                primary.putAll(inherited);
+                addedHashMap.putAll(inherited);
             }
         }
 //            update last replica to have data of failed one
@@ -744,60 +1074,77 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
                 .setPort(selfPort).build();
     }
 
-    private List<String> generateExpiredKeyList(int predecessorID){
-        List<String> keyList = new ArrayList<>();
-        for (Map.Entry<String, String> entry : hashMap.entrySet()) {
-            if(!inRange(hasher.hash(entry.getKey()), predecessorID, selfID)){
-                keyList.add(entry.getKey());
+    //    streams the keys to target in bounded chunks, deleting each chunk locally once it is acknowledged,
+    //    returns the keys that were handed off
+    private List<String> handOffKeys(Identifier target, List<String> keyList) {
+        List<String> handedOff = new ArrayList<>();
+        if (keyList.isEmpty()) return handedOff;
+
+        List<Integer> chunkStarts = splitIntoChunks(keyList);
+        int chunkCount = chunkStarts.size();
+        String transferID = String.format("%d-%d-%d", selfID, target.getID(), System.nanoTime());
+        LongFunction<Map<String, ByteString>> chunks = sequence -> {
+            if (sequence >= chunkCount) return null;
+            Map<String, ByteString> chunk = new HashMap<>();
+            for (String key : chunkKeys(keyList, chunkStarts, (int) sequence)) {
+                ByteString value = primary.get(key);
+                if (value != null) chunk.put(key, value);
             }
-        }
-        return keyList;
-    }
+            return chunk;
+        };
+
+        long nextSequence = 0;
+        for (int attempt = 0; attempt < HANDOFF_ATTEMPTS && nextSequence < chunkCount; attempt++) {
+            ChordNodeClient targetClient = new ChordNodeClient(target.getIP(), target.getPort());
+            long acked = targetClient.handoffData(transferID, nextSequence, chunks, HANDOFF_WINDOW, HANDOFF_TIMEOUT_MILLIS);
+            targetClient.close();
 
-    private HashMap<String, String> generateTransferredMap(int id) {
-        HashMap<String, String> hashMapToTransfer = new HashMap<>();
-//            prepare keys to transfer
-        for (Map.Entry<String, String> entry : hashMap.entrySet()) {
-            if(hasher.hash(entry.getKey()) <= id){
-                hashMapToTransfer.put(entry.getKey(), entry.getValue());
+            for (long sequence = nextSequence; sequence <= acked; sequence++) {
+                for (String key : chunkKeys(keyList, chunkStarts, (int) sequence)) {
+                    primary.remove(key);
+                    handedOff.add(key);
+                }
             }
+            nextSequence = acked + 1;
         }
-
-        return hashMapToTransfer;
-    }
-
-    private HashMap<String, String> generateTransferredMap(List<String> keyList) {
-        HashMap<String, String> hashMapToTransfer = new HashMap<>();
-//            prepare keys to transfer
-        for (String key : keyList) {
-            hashMapToTransfer.put(key, hashMap.get(key));
+        if (nextSequence < chunkCount) {
+            logger.warning(String.format("Handoff to %d stopped after %d of %d chunks", target.getID(), nextSequence, chunkCount));
         }
-
-        return hashMapToTransfer;
+        return handedOff;
     }
 
-    private String generateDataJsonAndDeleteLocal(int predecessorID){
-        HashMap<String, String> hashMapToTransfer = generateTransferredMap(predecessorID);
-
-//            remove local keys
-        for (Map.Entry<String, String> entry : hashMapToTransfer.entrySet()) {
-            if(hasher.hash(entry.getKey()) <= predecessorID){
-                hashMap.remove(entry.getKey());
+    private List<Integer> splitIntoChunks(List<String> keyList) {
+        List<Integer> chunkStarts = new ArrayList<>();
+        int keys = 0;
+        long bytes = 0;
+        for (int i = 0; i < keyList.size(); i++) {
+            ByteString value = primary.get(keyList.get(i));
+            long size = keyList.get(i).length() + (value == null ? 0 : value.size());
+            if (i == 0 || keys >= HANDOFF_CHUNK_KEYS || bytes + size > HANDOFF_CHUNK_BYTES) {
+                chunkStarts.add(i);
+                keys = 0;
+                bytes = 0;
             }
+            keys++;
+            bytes += size;
         }
-
-        return JsonUtil.serilizable(hashMapToTransfer);
+        return chunkStarts;
     }
 
-    private String generateDataJsonAndDeleteLocal(List<String> keyList){
-        HashMap<String, String> hashMapToTransfer = generateTransferredMap(keyList);
+    private List<String> chunkKeys(List<String> keyList, List<Integer> chunkStarts, int sequence) {
+        int end = sequence + 1 < chunkStarts.size() ? chunkStarts.get(sequence + 1) : keyList.size();
+        return keyList.subList(chunkStarts.get(sequence), end);
+    }
 
-//            remove local keys
-        for (String key : keyList) {
-            hashMap.remove(key);
-        }
+    //    keys outside (predecessorID, selfID], read off the ring index without rehashing
+    private List<String> generateExpiredKeyList(int predecessorID){
+        if (predecessorID == selfID) return new ArrayList<>();
+        return primary.keysInRange(selfID, predecessorID);
+    }
 
-        return JsonUtil.serilizable(hashMapToTransfer);
+    private Map<String, ByteString> generateTransferredMap(int id) {
+        if (id < 0) return new HashMap<>();
+        return primary.entriesInRange(-1, id);
     }
 
     private boolean validIdentifier(Identifier identifier){
@@ -816,7 +1163,7 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
 
     @Override
     public void tellmeKeyNumber(TellmeKeyNumberRequest request, StreamObserver<TellmeKeyNumberResponse> responseObserver) {
-        TellmeKeyNumberResponse response = TellmeKeyNumberResponse.newBuilder().setNumber(hashMap.size()).build();
+        TellmeKeyNumberResponse response = TellmeKeyNumberResponse.newBuilder().setNumber(primary.size()).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
@@ -835,11 +1182,7 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
 
     @Override
     public void tellmeReplicaKeyNumber(TellmeReplicaKeyNumberRequest request, StreamObserver<TellmeReplicaKeyNumberResponse> responseObserver) {
-        int replicaKeyNum = 0;
-        for(int tagID : replica.keySet()){
-            replicaKeyNum += replica.get(tagID).size();
-        }
-        TellmeReplicaKeyNumberResponse response = TellmeReplicaKeyNumberResponse.newBuilder().setNumber(replicaKeyNum).build();
+        TellmeReplicaKeyNumberResponse response = TellmeReplicaKeyNumberResponse.newBuilder().setNumber(replicaKeyCount()).build();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
 
@@ -849,13 +1192,10 @@ public class ChordNodeService extends ChordNodeServiceGrpc.ChordNodeServiceImplB
     public void kill(KillRequest request, StreamObserver<KillResponse> responseObserver) {
         responseObserver.onCompleted();
 
-        this.checkPredecessorTask.cancel();
-        this.fixFingersTask.cancel();
-        this.inspectRedundancyTask.cancel();
-        this.printStatusTask.cancel();
-        this.stabilizeTask.cancel();
+        if (this.maintenance != null) this.maintenance.cancel();
 
         this.server.shutdownNow();
+        this.primary.close();
 
     }
 
@@ -0,0 +1,147 @@
+package node;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the periodic maintenance of one node on threads shared by every node in the process.
+ *
+ * The tasks of one node run one at a time, in the order they fall due, so they can keep using the
+ * node's state without locking as they did on the node's own Timer. A blocked RPC holds up the node
+ * that made it and one of a fixed number of worker threads, rounds of other nodes queue for the
+ * rest. Every task waits twice as long after each round that found nothing changed,
+ * up to its maximum interval, and all tasks of the node go back to their minimum interval as soon
+ * as one of them, or the node itself, reports churn.
+ */
+public class MaintenanceScheduler {
+
+    private static final Logger logger = Logger.getLogger(MaintenanceScheduler.class.getName());
+
+    public static final String WORKERS_PROPERTY = "chord.maintenance.workers";
+
+    private static final int DEFAULT_WORKERS = 16;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(daemonThreads("chord-maintenance-timer"));
+    //    idle workers exit, the queue holds at most one round per node since every node runs one at a time
+    private static final ExecutorService WORKERS = boundedWorkers(defaultWorkers());
+
+    private final String owner;
+    private final Executor lane = MoreExecutors.newSequentialExecutor(WORKERS);
+    private final List<AdaptiveTask> tasks = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+
+    public MaintenanceScheduler(String owner) {
+        this.owner = owner;
+    }
+
+    //    round returns true when it saw the ring change
+    public AdaptiveTask schedule(String name, BooleanSupplier round, long minMillis, long maxMillis, long initialDelayMillis) {
+        AdaptiveTask task = new AdaptiveTask(name, round, minMillis, maxMillis);
+        tasks.add(task);
+        task.scheduleIn(initialDelayMillis);
+        return task;
+    }
+
+    //    every task back to its minimum interval, tasks waiting longer than that run early
+    public void churn() {
+        for (AdaptiveTask task : tasks) {
+            task.reset();
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+        for (AdaptiveTask task : tasks) {
+            task.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public static int defaultWorkers() {
+        return Math.max(1, Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS));
+    }
+
+    private static ExecutorService boundedWorkers(int workers) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("chord-maintenance"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public class AdaptiveTask {
+        private final String name;
+        private final BooleanSupplier round;
+        private final long minMillis;
+        private final long maxMillis;
+        private long intervalMillis;
+        private long dueAtMillis;
+        private ScheduledFuture<?> pending;
+
+        AdaptiveTask(String name, BooleanSupplier round, long minMillis, long maxMillis) {
+            this.name = name;
+            this.round = round;
+            this.minMillis = minMillis;
+            this.maxMillis = Math.max(minMillis, maxMillis);
+            this.intervalMillis = minMillis;
+        }
+
+        public synchronized long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        private synchronized void scheduleIn(long delayMillis) {
+            if (cancelled) return;
+            dueAtMillis = System.currentTimeMillis() + delayMillis;
+            pending = TIMER.schedule(() -> lane.execute(this::run), delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void run() {
+            if (cancelled) return;
+            boolean changed;
+            try {
+                changed = round.getAsBoolean();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, String.format("%s of %s failed", name, owner), e);
+                changed = false;
+            }
+
+            long delay;
+            synchronized (this) {
+                intervalMillis = changed ? minMillis : Math.min(maxMillis, intervalMillis * 2);
+                delay = intervalMillis;
+            }
+            if (changed) churn();
+            scheduleIn(delay);
+        }
+
+        private synchronized void reset() {
+            intervalMillis = minMillis;
+//            a round that already fired is queued or running and schedules itself afterwards
+            if (pending != null && dueAtMillis - System.currentTimeMillis() > minMillis && pending.cancel(false)) {
+                scheduleIn(minMillis);
+            }
+        }
+
+        private synchronized void cancel() {
+            if (pending != null) pending.cancel(false);
+        }
+    }
+}
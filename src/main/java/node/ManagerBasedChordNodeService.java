@@ -4,7 +4,6 @@ import io.grpc.StatusRuntimeException;
 import manager.ChordManagerClient;
 import net.grpc.chord.Identifier;
 
-import java.util.Timer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,23 +50,7 @@ public class ManagerBasedChordNodeService extends ChordNodeService {
 
     public void managerStart() {
         create();
-        this.next = 0;
-        Timer timer = new Timer();
-
-        this.stabilizeTask = new StabilizeTask();
-        timer.schedule(stabilizeTask, 1000, 500);
-
-        this.checkPredecessorTask = new CheckPredecessorTask();
-        timer.schedule(checkPredecessorTask, 1000, 500);
-
-        this.fixFingersTask = new FixFingersTask();
-        timer.schedule(fixFingersTask, 1000, 500);
-
-        this.inspectRedundancyTask = new InspectRedundancyTask();
-        timer.schedule(inspectRedundancyTask, 1000, 2000);
-
-        this.printStatusTask = new PrintStatusTask();
-        timer.schedule(printStatusTask, 1000, 500);
+        startMaintenance();
         // start method of super class
         managerJoin();
     }
@@ -0,0 +1,89 @@
+package node;
+
+import net.grpc.chord.Identifier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-node cache of peer liveness, keyed by IP:port.
+ *
+ * Observations come from the periodic maintenance RPCs (stabilize, checkPredecessor) and from the
+ * outcome of ordinary RPCs. An observation older than the freshness window is treated as unknown,
+ * so the caller probes the peer again.
+ */
+public class PeerLivenessTable {
+
+    public static final long DEFAULT_FRESHNESS_MILLIS = 2000;
+    public static final String FRESHNESS_PROPERTY = "chord.liveness.freshnessMillis";
+
+    private final Map<String, Observation> peers = new ConcurrentHashMap<>();
+    private volatile long freshnessMillis;
+
+    public PeerLivenessTable() {
+        this(defaultFreshnessMillis());
+    }
+
+    //    -Dchord.liveness.freshnessMillis=500 applies to every node of the process
+    public static long defaultFreshnessMillis() {
+        return Long.getLong(FRESHNESS_PROPERTY, DEFAULT_FRESHNESS_MILLIS);
+    }
+
+    public PeerLivenessTable(long freshnessMillis) {
+        this.freshnessMillis = freshnessMillis;
+    }
+
+    public long getFreshnessMillis() {
+        return freshnessMillis;
+    }
+
+    public void setFreshnessMillis(long freshnessMillis) {
+        this.freshnessMillis = freshnessMillis;
+    }
+
+    public void record(Identifier identifier, boolean alive) {
+        if (identifier == null || identifier.getID() == -1) return;
+        peers.put(toAddress(identifier), new Observation(alive, System.currentTimeMillis()));
+    }
+
+    public void markAlive(Identifier identifier) {
+        record(identifier, true);
+    }
+
+    public void markSuspected(Identifier identifier) {
+        record(identifier, false);
+    }
+
+    public boolean isFreshlyAlive(Identifier identifier) {
+        Observation observation = freshObservation(identifier);
+        return observation != null && observation.alive;
+    }
+
+    public boolean isFreshlySuspected(Identifier identifier) {
+        Observation observation = freshObservation(identifier);
+        return observation != null && !observation.alive;
+    }
+
+    private Observation freshObservation(Identifier identifier) {
+        if (identifier == null) return null;
+        Observation observation = peers.get(toAddress(identifier));
+        if (observation == null || System.currentTimeMillis() - observation.timestamp > freshnessMillis) {
+            return null;
+        }
+        return observation;
+    }
+
+    private static String toAddress(Identifier identifier) {
+        return identifier.getIP() + ":" + identifier.getPort();
+    }
+
+    private static class Observation {
+        private final boolean alive;
+        private final long timestamp;
+
+        Observation(boolean alive, long timestamp) {
+            this.alive = alive;
+            this.timestamp = timestamp;
+        }
+    }
+}
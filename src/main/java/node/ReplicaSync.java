@@ -0,0 +1,149 @@
+package node;
+
+import com.google.protobuf.ByteString;
+import net.grpc.chord.Identifier;
+import net.grpc.chord.LeafEntriesCursor;
+import net.grpc.chord.ReplicaLeafEntriesResponse;
+import storage.HashTreeStore;
+import storage.RingHashTree;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * One anti-entropy pass bringing a successor's replica of our data in line with the primary store.
+ *
+ * The hash trees are compared top-down with digest calls, and only the keys under differing leaves
+ * are fetched and then shipped or removed. The successor hands out leaf entries in pages of at most
+ * pageBytes, so a crowded leaf never has to fit into one message. A subtree the successor reports
+ * empty is shipped without asking for its entries.
+ */
+public class ReplicaSync {
+
+    private static final Logger logger = Logger.getLogger(ReplicaSync.class.getName());
+
+    //    the most a node puts into one page of leaf entries, well below the 4 MB gRPC default
+    public static final int MAX_PAGE_BYTES = 1 << 20;
+    private static final int LEAVES_PER_REQUEST = 16;
+    private static final int SHIP_BATCH_BYTES = 1 << 20;
+
+    private final HashTreeStore primary;
+    private final Identifier self;
+    private final ChordNodeClient successorClient;
+    private int pageBytes = MAX_PAGE_BYTES;
+    private int shipped;
+    private int removed;
+    private int pages;
+
+    public ReplicaSync(HashTreeStore primary, Identifier self, ChordNodeClient successorClient) {
+        this.primary = primary;
+        this.self = self;
+        this.successorClient = successorClient;
+    }
+
+    public void setPageBytes(int pageBytes) {
+        this.pageBytes = pageBytes;
+    }
+
+    //    true when something was shipped or removed, false as well when a call failed
+    public boolean run() {
+//        a partly built tree would make the successor drop keys we hold
+        if (!primary.isTreeReady()) return false;
+        RingHashTree tree = primary.tree();
+        List<Integer> differingLeaves = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        List<Integer> frontier = Collections.singletonList(1);
+        while (!frontier.isEmpty()) {
+            List<Long> remoteHashes = successorClient.replicaDigest(self, frontier);
+            if (remoteHashes == null || remoteHashes.size() != frontier.size()) return false;
+            List<Integer> nextFrontier = new ArrayList<>();
+            for (int i = 0; i < frontier.size(); i++) {
+                int node = frontier.get(i);
+                if (remoteHashes.get(i) == tree.hash(node)) continue;
+                if (remoteHashes.get(i) == 0) {
+                    missing.addAll(tree.entries(node).keySet());
+                } else if (tree.isLeaf(node)) {
+                    differingLeaves.add(node);
+                } else {
+                    nextFrontier.add(2 * node);
+                    nextFrontier.add(2 * node + 1);
+                }
+            }
+            frontier = nextFrontier;
+        }
+
+        if (!shipKeys(missing)) return false;
+        shipped += missing.size();
+
+        for (int from = 0; from < differingLeaves.size(); from += LEAVES_PER_REQUEST) {
+            List<Integer> leaves = differingLeaves.subList(from, Math.min(differingLeaves.size(), from + LEAVES_PER_REQUEST));
+            Map<String, Long> extra = remoteEntries(leaves);
+            if (extra == null) return false;
+
+            List<String> outdated = new ArrayList<>();
+            for (int leaf : leaves) {
+                for (Map.Entry<String, Long> entry : tree.entries(leaf).entrySet()) {
+                    if (!entry.getValue().equals(extra.remove(entry.getKey()))) outdated.add(entry.getKey());
+                }
+            }
+//            a key written since the trees were read is left for the next round
+            List<String> stale = new ArrayList<>();
+            for (String key : extra.keySet()) {
+                if (!primary.containsKey(key)) stale.add(key);
+            }
+
+            if (!shipKeys(outdated)) return false;
+            if (!stale.isEmpty() && !successorClient.removeMultipleScatteredReplica(self, stale)) return false;
+            shipped += outdated.size();
+            removed += stale.size();
+        }
+        if (shipped + removed > 0) {
+            logger.info(String.format("Replica sync: %d leaves differed, %d keys shipped, %d removed in %d pages", differingLeaves.size(), shipped, removed, pages));
+        }
+        return shipped + removed > 0;
+    }
+
+    public int getShipped() {
+        return shipped;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    //    every page of the successor's entries under leaves, null when a call failed
+    private Map<String, Long> remoteEntries(List<Integer> leaves) {
+        Map<String, Long> entries = new HashMap<>();
+        LeafEntriesCursor cursor = null;
+        do {
+            ReplicaLeafEntriesResponse page = successorClient.replicaLeafEntries(self, leaves, cursor, pageBytes);
+            if (page == null) return null;
+            pages++;
+            entries.putAll(page.getEntryHashesMap());
+            cursor = page.hasNext() ? page.getNext() : null;
+        } while (cursor != null);
+        return entries;
+    }
+
+    //    current values of keys, in batches that fit a gRPC message
+    private boolean shipKeys(List<String> keys) {
+        Map<String, ByteString> batch = new HashMap<>();
+        long batchBytes = 0;
+        for (String key : keys) {
+            ByteString value = primary.get(key);
+            if (value == null) continue;
+            batch.put(key, value);
+            batchBytes += key.length() + value.size();
+            if (batchBytes >= SHIP_BATCH_BYTES) {
+                if (!successorClient.addMultipleScatteredReplica(self, batch)) return false;
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        return batch.isEmpty() || successorClient.addMultipleScatteredReplica(self, batch);
+    }
+}
@@ -0,0 +1,177 @@
+package node;
+
+import com.google.protobuf.ByteString;
+import net.grpc.chord.Identifier;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Ships primary writes to the successors holding our replicas.
+ *
+ * Each successor has its own queue. Writes that arrive while a batch is in flight are coalesced
+ * into the next AddMultipleScatteredReplica call, and the queues of different successors are
+ * drained concurrently. The returned future completes according to the {@link AckPolicy}.
+ */
+public class ReplicationPipeline {
+
+    private static final Logger logger = Logger.getLogger(ReplicationPipeline.class.getName());
+
+    public enum AckPolicy {
+        //        acknowledge once the write is in the local primary storage
+        LOCAL,
+        //        acknowledge once one successor holds the replica (or every successor failed)
+        FIRST_REPLICA,
+        //        acknowledge once every successor answered
+        ALL_REPLICAS
+    }
+
+    public static final String ACK_POLICY_PROPERTY = "chord.replication.ack";
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 512;
+    //    stays well below the 4 MB gRPC message limit when values are file chunks
+    private static final long DEFAULT_MAX_BATCH_BYTES = 2 << 20;
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "replication-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Identifier self;
+    private final PeerLivenessTable livenessTable;
+    private final Map<String, ReplicaQueue> queues = new ConcurrentHashMap<>();
+    private volatile AckPolicy ackPolicy = defaultAckPolicy();
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    public ReplicationPipeline(Identifier self, PeerLivenessTable livenessTable) {
+        this.self = self;
+        this.livenessTable = livenessTable;
+    }
+
+    //    -Dchord.replication.ack=FIRST_REPLICA applies to every node of the process
+    public static AckPolicy defaultAckPolicy() {
+        return AckPolicy.valueOf(System.getProperty(ACK_POLICY_PROPERTY, AckPolicy.ALL_REPLICAS.name()).toUpperCase());
+    }
+
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    public void setAckPolicy(AckPolicy ackPolicy) {
+        this.ackPolicy = ackPolicy;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public CompletableFuture<Void> replicate(Identifier[] successors, String key, ByteString value) {
+        return replicate(successors, Collections.singletonMap(key, value));
+    }
+
+    public CompletableFuture<Void> replicate(Identifier[] successors, Map<String, ByteString> entries) {
+        List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+        for (Identifier successor : successors) {
+            if (successor == null || successor.getID() == -1 || successor.getID() == self.getID()) continue;
+            acks.add(enqueue(successor, entries));
+        }
+        return acknowledgement(acks);
+    }
+
+    private CompletableFuture<Boolean> enqueue(Identifier successor, Map<String, ByteString> entries) {
+        String address = successor.getIP() + ":" + successor.getPort();
+        ReplicaQueue queue = queues.computeIfAbsent(address, a -> new ReplicaQueue(successor));
+        PendingWrite write = new PendingWrite(entries);
+        queue.pending.add(write);
+        queue.scheduleFlush();
+        return write.future;
+    }
+
+    private CompletableFuture<Void> acknowledgement(List<CompletableFuture<Boolean>> acks) {
+        if (acks.isEmpty() || ackPolicy == AckPolicy.LOCAL) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0]));
+        if (ackPolicy == AckPolicy.ALL_REPLICAS) {
+            return all;
+        }
+
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        for (CompletableFuture<Boolean> ack : acks) {
+            ack.thenAccept(succeeded -> {
+                if (succeeded) first.complete(null);
+            });
+        }
+        all.thenRun(() -> first.complete(null));
+        return first;
+    }
+
+    private class ReplicaQueue {
+        private final Identifier successor;
+        private final Queue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+        //        at most one batch in flight per successor keeps the writes of a key in order
+        private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+        ReplicaQueue(Identifier successor) {
+            this.successor = successor;
+        }
+
+        void scheduleFlush() {
+            if (!pending.isEmpty() && flushing.compareAndSet(false, true)) {
+                executor.execute(this::flush);
+            }
+        }
+
+        private void flush() {
+            List<PendingWrite> batch = new ArrayList<>();
+            boolean succeeded = false;
+            try {
+                Map<String, ByteString> coalesced = new LinkedHashMap<>();
+                long bytes = 0;
+                PendingWrite write;
+                while (coalesced.size() < maxBatchSize && bytes < maxBatchBytes && (write = pending.poll()) != null) {
+                    batch.add(write);
+                    coalesced.putAll(write.entries);
+                    bytes += write.bytes;
+                }
+                if (batch.isEmpty()) return;
+
+                ChordNodeClient client = new ChordNodeClient(successor.getIP(), successor.getPort());
+                succeeded = client.addMultipleScatteredReplica(self, coalesced);
+                client.close();
+                livenessTable.record(successor, succeeded);
+                if (!succeeded) {
+                    logger.warning(String.format("Replicating %d keys to %d failed", coalesced.size(), successor.getID()));
+                }
+            } finally {
+                for (PendingWrite done : batch) {
+                    done.future.complete(succeeded);
+                }
+                flushing.set(false);
+                scheduleFlush();
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        private final Map<String, ByteString> entries;
+        private final long bytes;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingWrite(Map<String, ByteString> entries) {
+            this.entries = entries;
+            long size = 0;
+            for (Map.Entry<String, ByteString> entry : entries.entrySet()) {
+                size += entry.getKey().length() + entry.getValue().size();
+            }
+            this.bytes = size;
+        }
+    }
+}
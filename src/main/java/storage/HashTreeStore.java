@@ -0,0 +1,142 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import common.Hasher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a storage engine and keeps a {@link RingHashTree} of its content, so two copies of the
+ * data can be compared without sending it.
+ *
+ * The tree of an engine that recovered data from disk is filled in the background, so opening the
+ * store does not wait on hashing every stored value. Until {@link #isTreeReady} the tree only holds
+ * part of the data and must not be compared with another copy.
+ */
+public class HashTreeStore implements StorageEngine {
+
+    private static final Logger logger = Logger.getLogger(HashTreeStore.class.getName());
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final ExecutorService treeBuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "hash-tree-build");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final StorageEngine store;
+    private final Hasher hasher;
+    private final RingHashTree tree;
+    //    keeps the store and the tree of one key in step
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private volatile boolean treeReady;
+
+    public HashTreeStore(StorageEngine store, Hasher hasher) {
+        this.store = store;
+        this.hasher = hasher;
+        this.tree = new RingHashTree(hasher.getTotal());
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+        if (store.isEmpty()) {
+            treeReady = true;
+        } else {
+            treeBuilder.execute(this::buildTree);
+        }
+    }
+
+    public RingHashTree tree() {
+        return tree;
+    }
+
+    //    false while the data recovered on open is still being added to the tree
+    public boolean isTreeReady() {
+        return treeReady;
+    }
+
+    @Override
+    public ByteString get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return store.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, ByteString value) {
+        put(key, hasher.hash(key), value);
+    }
+
+    @Override
+    public void put(String key, int ringID, ByteString value) {
+        synchronized (lockFor(key)) {
+            store.put(key, ringID, value);
+            tree.put(key, ringID, value);
+        }
+    }
+
+    @Override
+    public ByteString remove(String key) {
+        return remove(key, hasher.hash(key));
+    }
+
+    //    for callers that already hashed the key, ringID must be the one the key was put with
+    public ByteString remove(String key, int ringID) {
+        synchronized (lockFor(key)) {
+            ByteString value = store.remove(key);
+            if (value != null) tree.remove(key, ringID);
+            return value;
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ByteString> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public List<String> keysInRange(int leftID, int rightID) {
+        return store.keysInRange(leftID, rightID);
+    }
+
+    @Override
+    public Map<String, ByteString> entriesInRange(int leftID, int rightID) {
+        return store.entriesInRange(leftID, rightID);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    //    writes go on meanwhile: under the key's lock the tree gets whatever the store holds right now
+    private void buildTree() {
+        try {
+//            (0, 0] wraps around the whole ring
+            for (String key : store.keysInRange(0, 0)) {
+                synchronized (lockFor(key)) {
+                    ByteString value = store.get(key);
+                    if (value != null) tree.put(key, hasher.hash(key), value);
+                }
+            }
+            treeReady = true;
+        } catch (Exception e) {
+            logger.warning("Building the hash tree failed: " + e);
+        }
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
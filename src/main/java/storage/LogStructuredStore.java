@@ -0,0 +1,711 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import common.Hasher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Durable storage engine built as a small log-structured store.
+ *
+ * Every write is appended to a write-ahead log and kept in a memtable. A full memtable is written
+ * out as an immutable segment file sorted by ring position, and the log is started over. Segments
+ * are merged in the background once there are enough of them. Only keys and the file positions of
+ * their values stay on the heap, the values of flushed keys are read from the segment files.
+ *
+ * On open the segments are replayed oldest first, then the log, so a restarted node finds its
+ * data without asking the ring for it.
+ *
+ * With mapped reads the segment files are memory-mapped, and {@link #get} hands out
+ * slices of the mapping, so large values go from the page cache into a response without ever
+ * being copied onto the heap.
+ */
+public class LogStructuredStore implements StorageEngine {
+
+    private static final Logger logger = Logger.getLogger(LogStructuredStore.class.getName());
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    //    record length and checksum in front of every record
+    private static final int FRAME_HEADER = 8;
+    //    the largest record body written or read back, a longer length can only be a torn header
+    private static final int MAX_RECORD_BYTES = 256 << 20;
+    private static final long DEFAULT_MEMTABLE_BYTES = 4 << 20;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    //    a segment is mapped in regions of this size, a single mapping cannot exceed 2 GB
+    private static final long MAPPED_REGION_BYTES = 1L << 30;
+    private static final String WAL_NAME = "wal.log";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)-(\\d+)\\.seg");
+    //    marks a deleted key in the memtable
+    private static final Location TOMBSTONE = new Location(-1, null, null, 0, 0);
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "storage-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Hasher hasher;
+    private final File directory;
+    private final boolean mappedReads;
+    //    live keys only, pointing either at a memtable value or into a segment
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<RingKey> ringIndex = new ConcurrentSkipListSet<>();
+    //    writes since the last flush, in ring order, including deletes
+    private ConcurrentSkipListMap<RingKey, Location> memtable = new ConcurrentSkipListMap<>();
+    private long memtableBytes;
+    //    oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSegment;
+    private FileOutputStream wal;
+    private final Object writeLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private volatile boolean closed;
+
+    private volatile long memtableLimitBytes = DEFAULT_MEMTABLE_BYTES;
+    private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private volatile boolean syncWrites;
+
+    public LogStructuredStore(Hasher hasher, File directory) throws IOException {
+        this(hasher, directory, false);
+    }
+
+    public LogStructuredStore(Hasher hasher, File directory, boolean mappedReads) throws IOException {
+        this.hasher = hasher;
+        this.directory = directory;
+        this.mappedReads = mappedReads;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create storage directory " + directory);
+        }
+        long start = System.currentTimeMillis();
+        recover();
+        logger.info(String.format("Recovered %d keys from %s in %d ms", index.size(), directory, System.currentTimeMillis() - start));
+    }
+
+    //    fsync the log on every write instead of leaving it to the operating system
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    public void setMemtableLimitBytes(long memtableLimitBytes) {
+        this.memtableLimitBytes = memtableLimitBytes;
+    }
+
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public int segmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+
+    @Override
+    public ByteString get(String key) {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) return null;
+            if (location.segment == null) return location.value;
+            try {
+                return location.segment.readValue(location);
+            } catch (ClosedChannelException e) {
+//                the segment was merged away meanwhile, the index already points at the new one
+                retryAfterClosedSegment(location.segment, e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, ByteString value) {
+        put(key, hasher.hash(key), value);
+    }
+
+    @Override
+    public void put(String key, int ringID, ByteString value) {
+        synchronized (writeLock) {
+            ensureOpen();
+            byte[] record = encode(PUT, ringID, key, value);
+            appendToLog(record);
+            applyPut(key, ringID, value, record.length);
+            maybeFlush();
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, ByteString> data) {
+        if (data.isEmpty()) return;
+        synchronized (writeLock) {
+            ensureOpen();
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            int[] ringIDs = new int[data.size()];
+            int[] lengths = new int[data.size()];
+            int i = 0;
+            for (Map.Entry<String, ByteString> entry : data.entrySet()) {
+                ringIDs[i] = hasher.hash(entry.getKey());
+                byte[] record = encode(PUT, ringIDs[i], entry.getKey(), entry.getValue());
+                lengths[i++] = record.length;
+                batch.write(record, 0, record.length);
+            }
+//            one append for the whole batch
+            appendToLog(batch.toByteArray());
+            i = 0;
+            for (Map.Entry<String, ByteString> entry : data.entrySet()) {
+                applyPut(entry.getKey(), ringIDs[i], entry.getValue(), lengths[i++]);
+            }
+            maybeFlush();
+        }
+    }
+
+    @Override
+    public ByteString remove(String key) {
+        synchronized (writeLock) {
+            ensureOpen();
+            Location old = index.get(key);
+            if (old == null) return null;
+            ByteString value = get(key);
+            byte[] record = encode(DELETE, old.ringID, key, null);
+            appendToLog(record);
+            index.remove(key);
+            RingKey ringKey = new RingKey(old.ringID, key);
+            ringIndex.remove(ringKey);
+            memtable.put(ringKey, TOMBSTONE);
+            memtableBytes += record.length;
+            maybeFlush();
+            return value;
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ByteString> action) {
+        for (String key : index.keySet()) {
+            ByteString value = get(key);
+            if (value != null) action.accept(key, value);
+        }
+    }
+
+    @Override
+    public List<String> keysInRange(int leftID, int rightID) {
+        List<String> keys = new ArrayList<>();
+        for (RingKey ringKey : RingKey.range(ringIndex, leftID, rightID)) {
+            if (index.containsKey(ringKey.key)) keys.add(ringKey.key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Map<String, ByteString> entriesInRange(int leftID, int rightID) {
+        Map<String, ByteString> data = new LinkedHashMap<>();
+        for (RingKey ringKey : RingKey.range(ringIndex, leftID, rightID)) {
+            ByteString value = get(ringKey.key);
+            if (value != null) data.put(ringKey.key, value);
+        }
+        return data;
+    }
+
+    //    writes the memtable out as a segment, mostly useful before a planned shutdown
+    public void flush() {
+        synchronized (writeLock) {
+            ensureOpen();
+            flushMemtable();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+            try {
+                wal.close();
+            } catch (IOException e) {
+                logger.warning("Closing write-ahead log failed: " + e.getMessage());
+            }
+            for (Segment segment : segments) {
+                segment.retire();
+            }
+        }
+    }
+
+    private void applyPut(String key, int ringID, ByteString value, long bytes) {
+        Location location = new Location(ringID, value, null, 0, 0);
+        RingKey ringKey = new RingKey(ringID, key);
+        Location old = index.put(key, location);
+        if (old != null && old.ringID != ringID) ringIndex.remove(new RingKey(old.ringID, key));
+        ringIndex.add(ringKey);
+        memtable.put(ringKey, location);
+        memtableBytes += bytes;
+    }
+
+    private void appendToLog(byte[] records) {
+        try {
+            wal.write(records);
+            if (syncWrites) wal.getFD().sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void maybeFlush() {
+        if (memtableBytes >= memtableLimitBytes) flushMemtable();
+    }
+
+    //    caller holds writeLock
+    private void flushMemtable() {
+        if (memtable.isEmpty()) return;
+        long sequence = nextSegment++;
+        Map<String, Location> flushed = new HashMap<>();
+        Segment segment;
+        try {
+            segment = writeSegment(sequence, sequence, memtable, flushed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (Map.Entry<String, Location> entry : flushed.entrySet()) {
+            String key = entry.getKey();
+            Location inMemory = memtable.get(new RingKey(entry.getValue().ringID, key));
+            index.replace(key, inMemory, entry.getValue());
+        }
+        segments.add(segment);
+        memtable = new ConcurrentSkipListMap<>();
+        memtableBytes = 0;
+//        the segment is on disk, so the log can start over
+        resetLog();
+        scheduleCompaction();
+    }
+
+    private void resetLog() {
+        try {
+            if (wal != null) wal.close();
+            wal = new FileOutputStream(new File(directory, WAL_NAME), false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //    writes records in ring order into a new segment file and reports where every put value landed,
+    //    values still in older segments are copied over one at a time
+    private Segment writeSegment(long first, long last, SortedMap<RingKey, Location> records, Map<String, Location> written) throws IOException {
+        File target = new File(directory, segmentName(first, last));
+        File temp = new File(directory, target.getName() + ".tmp");
+        List<Placement> placed = new ArrayList<>();
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+            long position = 0;
+            for (Map.Entry<RingKey, Location> entry : records.entrySet()) {
+                RingKey ringKey = entry.getKey();
+                Location location = entry.getValue();
+                ByteString value = location == TOMBSTONE ? null : location.segment == null ? location.value : location.segment.readValue(location);
+                byte[] record = encode(value == null ? DELETE : PUT, ringKey.ringID, ringKey.key, value);
+                buffered.write(record);
+                if (value != null) {
+                    int valueOffset = valueOffset(record);
+                    placed.add(new Placement(ringKey, position + valueOffset, record.length - valueOffset));
+                }
+                position += record.length;
+            }
+            buffered.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Segment segment = new Segment(target, first, last, mappedReads);
+        for (Placement place : placed) {
+            written.put(place.ringKey.key, new Location(place.ringKey.ringID, null, segment, place.offset, place.length));
+        }
+        return segment;
+    }
+
+    //    caller holds writeLock
+    private void scheduleCompaction() {
+        if (segments.size() >= compactionThreshold && compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                boolean compacted = false;
+                try {
+                    compact();
+                    compacted = true;
+                } catch (Exception e) {
+                    logger.warning("Compaction of " + directory + " failed: " + e);
+                } finally {
+                    compacting.set(false);
+                }
+                if (compacted) {
+                    synchronized (writeLock) {
+//                        flushes during the merge may have piled up segments again
+                        if (!closed) scheduleCompaction();
+                    }
+                }
+            });
+        }
+    }
+
+    //    merges every current segment into one, keeping only the values the index still points at
+    private void compact() throws IOException {
+        List<Segment> inputs;
+        synchronized (writeLock) {
+            if (closed || segments.size() < 2) return;
+            inputs = new ArrayList<>(segments);
+        }
+        Set<Segment> inputSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        inputSet.addAll(inputs);
+
+//        the merge runs outside the write lock, writers only touch the memtable meanwhile
+        SortedMap<RingKey, Location> live = new TreeMap<>();
+        for (RingKey ringKey : ringIndex) {
+            Location location = index.get(ringKey.key);
+            if (location == null || !inputSet.contains(location.segment) || location.ringID != ringKey.ringID) continue;
+            live.put(ringKey, location);
+        }
+        Map<String, Location> merged = new HashMap<>();
+        Segment output;
+        try {
+            output = writeSegment(inputs.get(0).first, inputs.get(inputs.size() - 1).last, live, merged);
+        } catch (ClosedChannelException e) {
+            if (closed) return;
+            throw e;
+        }
+
+        synchronized (writeLock) {
+            if (closed) {
+                output.retire();
+                return;
+            }
+//            keys written again during the merge keep their newer location
+            for (Map.Entry<String, Location> entry : merged.entrySet()) {
+                RingKey ringKey = new RingKey(entry.getValue().ringID, entry.getKey());
+                index.replace(entry.getKey(), live.get(ringKey), entry.getValue());
+            }
+            segments.removeAll(inputs);
+            segments.add(0, output);
+            for (Segment input : inputs) {
+                input.retire();
+                Files.deleteIfExists(input.file.toPath());
+            }
+            logger.info(String.format("Compacted %d segments of %s into %s", inputs.size(), directory, output.file.getName()));
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        List<Segment> found = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().endsWith(".tmp")) {
+//                left over from a flush or compaction that did not finish
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                found.add(new Segment(file, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)), mappedReads));
+            }
+        }
+
+        for (Segment segment : found) {
+            if (coveredByMerge(segment, found)) {
+//                a compaction finished writing its output but not deleting its inputs
+                segment.retire();
+                Files.deleteIfExists(segment.file.toPath());
+            } else {
+                segments.add(segment);
+            }
+        }
+        segments.sort(Comparator.comparingLong(s -> s.last));
+        for (Segment segment : segments) {
+            replaySegment(segment);
+            nextSegment = Math.max(nextSegment, segment.last + 1);
+        }
+
+        File walFile = new File(directory, WAL_NAME);
+        if (walFile.exists()) {
+            replayLog(walFile);
+        }
+//        start with an empty log, which also drops a torn record at its end
+        flushMemtable();
+        if (wal == null) resetLog();
+    }
+
+    private static boolean coveredByMerge(Segment segment, List<Segment> all) {
+        for (Segment other : all) {
+            if (other != segment && other.first <= segment.first && segment.last <= other.last) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void replaySegment(Segment segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16))) {
+            long fileLength = segment.file.length();
+            long position = 0;
+            Record record;
+            while ((record = readRecord(in, fileLength - position)) != null) {
+                RingKey ringKey = new RingKey(record.ringID, record.key);
+                if (record.type == PUT) {
+                    int valueLength = record.length - record.valueOffset;
+                    Location old = index.put(record.key, new Location(record.ringID, null, segment, position + record.valueOffset, valueLength));
+                    if (old != null && old.ringID != record.ringID) ringIndex.remove(new RingKey(old.ringID, record.key));
+                    ringIndex.add(ringKey);
+                } else {
+                    index.remove(record.key);
+                    ringIndex.remove(ringKey);
+                }
+                position += record.length;
+            }
+        }
+    }
+
+    private void replayLog(File walFile) throws IOException {
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile), 1 << 16))) {
+            long fileLength = walFile.length();
+            long position = 0;
+            Record record;
+            while ((record = readRecord(in, fileLength - position)) != null) {
+                position += record.length;
+                if (record.type == PUT) {
+                    applyPut(record.key, record.ringID, record.value, record.length);
+                } else if (index.remove(record.key) != null) {
+                    RingKey ringKey = new RingKey(record.ringID, record.key);
+                    ringIndex.remove(ringKey);
+                    memtable.put(ringKey, TOMBSTONE);
+                }
+                replayed++;
+            }
+        }
+        logger.info(String.format("Replayed %d log records of %s", replayed, directory));
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("Storage at " + directory + " is closed");
+    }
+
+    private void retryAfterClosedSegment(Segment segment, ClosedChannelException e) {
+        if (closed) throw new IllegalStateException("Storage at " + directory + " is closed");
+        if (Thread.currentThread().isInterrupted()) throw new UncheckedIOException(e);
+        if (!segment.retired) segment.reopen();
+    }
+
+    private static String segmentName(long first, long last) {
+        return String.format("segment-%010d-%010d.seg", first, last);
+    }
+
+    /*
+     * Record layout, shared by the log and the segments:
+     *   int bodyLength, int crc32(body), body
+     *   body = byte type, int ringID, int keyLength, key, [int valueLength, value]
+     */
+    private static byte[] encode(byte type, int ringID, String key, ByteString value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long size = 1 + 4 + 4 + keyBytes.length + (value == null ? 0 : 4L + value.size());
+        if (size > MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException(String.format("Record of %d bytes for %s exceeds %d", size, key, MAX_RECORD_BYTES));
+        }
+        int bodyLength = (int) size;
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(ringID);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        if (value != null) {
+            buffer.putInt(value.size());
+            value.copyTo(buffer);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), FRAME_HEADER, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    //    where the value bytes start inside an encoded put record
+    private static int valueOffset(byte[] record) {
+        int keyLength = ByteBuffer.wrap(record).getInt(FRAME_HEADER + 1 + 4);
+        return FRAME_HEADER + 1 + 4 + 4 + keyLength + 4;
+    }
+
+    //    null at the end of the file or at a torn or corrupt record, remaining is what is left of the file
+    private static Record readRecord(DataInputStream in, long remaining) throws IOException {
+        int bodyLength;
+        int checksum;
+        byte[] body;
+        try {
+            bodyLength = in.readInt();
+            checksum = in.readInt();
+            if (bodyLength < 9) return null;
+//            a length torn like the crc is, it must not size the buffer
+            if (bodyLength > MAX_RECORD_BYTES || bodyLength > remaining - FRAME_HEADER) {
+                logger.warning(String.format("Dropping record of %d bytes with %d left at the end of the log", bodyLength, remaining - FRAME_HEADER));
+                return null;
+            }
+            body = new byte[bodyLength];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, bodyLength);
+        if ((int) crc.getValue() != checksum) {
+            logger.warning("Dropping corrupt record at the end of the log");
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        Record record = new Record();
+        record.length = FRAME_HEADER + bodyLength;
+        record.type = buffer.get();
+        record.ringID = buffer.getInt();
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        record.key = new String(keyBytes, StandardCharsets.UTF_8);
+        if (record.type == PUT) {
+            record.valueOffset = FRAME_HEADER + buffer.position() + 4;
+            byte[] valueBytes = new byte[buffer.getInt()];
+            buffer.get(valueBytes);
+            record.value = UnsafeByteOperations.unsafeWrap(valueBytes);
+        }
+        return record;
+    }
+
+    private static class Record {
+        private int length;
+        private int valueOffset;
+        private byte type;
+        private int ringID;
+        private String key;
+        private ByteString value;
+    }
+
+    private static class Placement {
+        private final RingKey ringKey;
+        private final long offset;
+        private final int length;
+
+        Placement(RingKey ringKey, long offset, int length) {
+            this.ringKey = ringKey;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    //    where the current value of a key lives: on the heap until the memtable is flushed, then in a segment
+    private static final class Location {
+        private final int ringID;
+        private final ByteString value;
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        Location(int ringID, ByteString value, Segment segment, long offset, int length) {
+            this.ringID = ringID;
+            this.value = value;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long first;
+        private final long last;
+        private volatile FileChannel channel;
+        private volatile boolean retired;
+        //        null unless reads are mapped, stays valid after the file is closed or deleted
+        private final MappedByteBuffer[] regions;
+
+        Segment(File file, long first, long last, boolean mapped) throws IOException {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.regions = mapped ? map(channel) : null;
+        }
+
+        private static MappedByteBuffer[] map(FileChannel channel) throws IOException {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + MAPPED_REGION_BYTES - 1) / MAPPED_REGION_BYTES)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * MAPPED_REGION_BYTES;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAPPED_REGION_BYTES, size - start));
+            }
+            return regions;
+        }
+
+        ByteString readValue(Location location) throws IOException {
+            int regionIndex = (int) (location.offset / MAPPED_REGION_BYTES);
+            if (regions != null && regionIndex < regions.length) {
+                MappedByteBuffer region = regions[regionIndex];
+                int start = (int) (location.offset % MAPPED_REGION_BYTES);
+//                a value crossing into the next region is read the ordinary way
+                if (start + location.length <= region.limit()) {
+                    ByteBuffer slice = region.duplicate();
+                    slice.position(start);
+                    slice.limit(start + location.length);
+                    return UnsafeByteOperations.unsafeWrap(slice.slice());
+                }
+            }
+            return UnsafeByteOperations.unsafeWrap(readFromChannel(location));
+        }
+
+        private byte[] readFromChannel(Location location) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            long position = location.offset;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) throw new EOFException("Segment " + file + " is truncated");
+            }
+            return buffer.array();
+        }
+
+        //        an interrupted reader closes the channel for everybody, open it again
+        synchronized void reopen() {
+            if (retired || channel.isOpen()) return;
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Closing segment " + file + " failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package storage;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash tree over the ring positions of a key set, kept up to date on every write.
+ *
+ * The ring is cut into a fixed number of ranges and every range again into buckets by a hash of
+ * the key, so a crowded range, or a node owning only a few positions, still ends in small leaves.
+ * A leaf hashes to the sum of the hashes of its (key, value) pairs and an inner node to the sum of
+ * its leaves, so two copies of the same data have equal trees and walking down from the root only
+ * visits the parts that differ. Nodes are numbered as in a binary heap: the root is 1, the children
+ * of node i are 2i and 2i + 1, and the leaves are the numbers leafCount() to 2 * leafCount() - 1.
+ */
+public class RingHashTree {
+
+    public static final int DEFAULT_RANGES = 256;
+    public static final int DEFAULT_BUCKETS = 64;
+
+    private static final HashFunction ENTRY_HASH = Hashing.murmur3_128();
+
+    private final int ringSize;
+    private final int ranges;
+    private final int buckets;
+    private final int leaves;
+    //    sum of every node, indexed like the heap
+    private final AtomicLongArray nodeHashes;
+    //    created when the first key lands in the leaf
+    private final AtomicReferenceArray<Map<String, Long>> leafEntries;
+
+    public RingHashTree(int ringSize) {
+        this(ringSize, DEFAULT_RANGES, DEFAULT_BUCKETS);
+    }
+
+    public RingHashTree(int ringSize, int ranges, int buckets) {
+        if (Integer.bitCount(ranges) != 1 || Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException(String.format("ranges and buckets must be powers of two: %d, %d", ranges, buckets));
+        }
+        this.ringSize = ringSize;
+        this.ranges = ranges;
+        this.buckets = buckets;
+        this.leaves = ranges * buckets;
+        this.nodeHashes = new AtomicLongArray(2 * leaves);
+        this.leafEntries = new AtomicReferenceArray<>(leaves);
+    }
+
+    public void put(String key, int ringID, ByteString value) {
+        long hash = entryHash(key, value);
+        int leaf = leafOf(key, ringID);
+//        compute keeps the sums in step with the entry it replaces
+        entriesOf(leaf).compute(key, (k, old) -> {
+            addToPath(leaf, hash - (old == null ? 0 : old));
+            return hash;
+        });
+    }
+
+    public void remove(String key, int ringID) {
+        int leaf = leafOf(key, ringID);
+        Map<String, Long> entries = leafEntries.get(leaf);
+        if (entries == null) return;
+        entries.computeIfPresent(key, (k, old) -> {
+            addToPath(leaf, -old);
+            return null;
+        });
+    }
+
+    public int leafCount() {
+        return leaves;
+    }
+
+    public boolean isLeaf(int node) {
+        return node >= leaves && node < 2 * leaves;
+    }
+
+    //    0 for numbers outside the tree, the same as an empty subtree
+    public long hash(int node) {
+        if (node < 1 || node >= 2 * leaves) return 0;
+        return nodeHashes.get(node);
+    }
+
+    //    key to entry hash of every key under one node
+    public Map<String, Long> entries(int node) {
+        Map<String, Long> result = new HashMap<>();
+        if (node < 1 || node >= 2 * leaves) return result;
+        int first = node;
+        int last = node;
+        while (first < leaves) {
+            first = 2 * first;
+            last = 2 * last + 1;
+        }
+        for (int leaf = first - leaves; leaf <= last - leaves; leaf++) {
+            Map<String, Long> entries = leafEntries.get(leaf);
+            if (entries != null) result.putAll(entries);
+        }
+        return result;
+    }
+
+    //    entries of the nodes in order, in key order within a node, resuming after from (null for the
+    //    first page) and stopping once about maxBytes of keys are collected
+    public Page page(List<Integer> nodes, Cursor from, long maxBytes) {
+        Map<String, Long> entries = new HashMap<>();
+        long bytes = 0;
+        int lastIndex = -1;
+        String lastKey = null;
+        for (int i = from == null ? 0 : from.index; i < nodes.size(); i++) {
+            NavigableMap<String, Long> sorted = new TreeMap<>(entries(nodes.get(i)));
+            if (from != null && i == from.index) sorted = sorted.tailMap(from.afterKey, false);
+            for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+                long size = entryBytes(entry.getKey());
+//                a page holds at least one entry whatever the limit
+                if (bytes + size > maxBytes && lastKey != null) return new Page(entries, new Cursor(lastIndex, lastKey));
+                entries.put(entry.getKey(), entry.getValue());
+                bytes += size;
+                lastIndex = i;
+                lastKey = entry.getKey();
+            }
+        }
+        return new Page(entries, null);
+    }
+
+    //    the key and its hash as they go over the wire, with room for the map entry framing
+    public static long entryBytes(String key) {
+        return key.length() + 16;
+    }
+
+    private Map<String, Long> entriesOf(int leaf) {
+        Map<String, Long> entries = leafEntries.get(leaf);
+        if (entries == null) {
+            leafEntries.compareAndSet(leaf, null, new ConcurrentHashMap<>());
+            entries = leafEntries.get(leaf);
+        }
+        return entries;
+    }
+
+    private void addToPath(int leaf, long delta) {
+        for (int node = leaves + leaf; node >= 1; node >>= 1) {
+            nodeHashes.addAndGet(node, delta);
+        }
+    }
+
+    private int leafOf(String key, int ringID) {
+        int range = (int) ((long) ringID * ranges / ringSize);
+        return range * buckets + bucketOf(key);
+    }
+
+    //    String.hashCode is fixed by the language, so every node puts a key in the same bucket
+    private int bucketOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h & (buckets - 1);
+    }
+
+    public static long entryHash(String key, ByteString value) {
+        return ENTRY_HASH.newHasher()
+                .putString(key, StandardCharsets.UTF_8)
+                .putInt(value.size())
+                .putBytes(value.asReadOnlyByteBuffer())
+                .hash().asLong();
+    }
+
+    //    where a page stopped: the last key returned and the index of its node in the request
+    public static class Cursor {
+        private final int index;
+        private final String afterKey;
+
+        public Cursor(int index, String afterKey) {
+            this.index = index;
+            this.afterKey = afterKey;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getAfterKey() {
+            return afterKey;
+        }
+    }
+
+    public static class Page {
+        private final Map<String, Long> entries;
+        private final Cursor next;
+
+        Page(Map<String, Long> entries, Cursor next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        public Map<String, Long> getEntries() {
+            return entries;
+        }
+
+        //        null on the last page
+        public Cursor getNext() {
+            return next;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * A key together with its ring ID, ordered by ring position first.
+ */
+class RingKey implements Comparable<RingKey> {
+    final int ringID;
+    final String key;
+
+    RingKey(int ringID, String key) {
+        this.ringID = ringID;
+        this.key = key;
+    }
+
+    //        sorts before every real key with this ring ID
+    static RingKey lowest(int ringID) {
+        return new RingKey(ringID, "");
+    }
+
+    //    the keys of the index in (leftID, rightID], wrapping around zero when leftID >= rightID
+    static Iterable<RingKey> range(NavigableSet<RingKey> index, int leftID, int rightID) {
+        if (leftID < rightID) {
+            return index.subSet(lowest(leftID + 1), true, lowest(rightID + 1), false);
+        }
+        List<RingKey> wrapped = new ArrayList<>(index.tailSet(lowest(leftID + 1), true));
+        wrapped.addAll(index.headSet(lowest(rightID + 1), false));
+        return wrapped;
+    }
+
+    @Override
+    public int compareTo(RingKey other) {
+        int byRing = Integer.compare(ringID, other.ringID);
+        return byRing != 0 ? byRing : key.compareTo(other.key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RingKey)) return false;
+        RingKey other = (RingKey) o;
+        return ringID == other.ringID && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * ringID + key.hashCode();
+    }
+}
@@ -0,0 +1,114 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+import common.Hasher;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory storage engine, indexed by the ring position of every key.
+ *
+ * The ring ID of a key is computed once when the key is inserted. Ownership changes then only
+ * need a range query over the index, which costs time proportional to the keys that move.
+ */
+public class RingOrderedStore implements StorageEngine {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Hasher hasher;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<RingKey> ringIndex = new ConcurrentSkipListSet<>();
+    //    keeps the entry map and the ring index of one key in step
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public RingOrderedStore(Hasher hasher) {
+        this.hasher = hasher;
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    @Override
+    public ByteString get(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, ByteString value) {
+        put(key, hasher.hash(key), value);
+    }
+
+    @Override
+    public void put(String key, int ringID, ByteString value) {
+        synchronized (lockFor(key)) {
+            entries.put(key, new Entry(ringID, value));
+            ringIndex.add(new RingKey(ringID, key));
+        }
+    }
+
+    @Override
+    public ByteString remove(String key) {
+        synchronized (lockFor(key)) {
+            Entry entry = entries.remove(key);
+            if (entry == null) return null;
+            ringIndex.remove(new RingKey(entry.ringID, key));
+            return entry.value;
+        }
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ByteString> action) {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue().value);
+        }
+    }
+
+    @Override
+    public List<String> keysInRange(int leftID, int rightID) {
+        List<String> keys = new ArrayList<>();
+        for (RingKey ringKey : indexRange(leftID, rightID)) {
+            if (entries.containsKey(ringKey.key)) keys.add(ringKey.key);
+        }
+        return keys;
+    }
+
+    @Override
+    public Map<String, ByteString> entriesInRange(int leftID, int rightID) {
+        Map<String, ByteString> data = new LinkedHashMap<>();
+        for (RingKey ringKey : indexRange(leftID, rightID)) {
+            ByteString value = get(ringKey.key);
+            if (value != null) data.put(ringKey.key, value);
+        }
+        return data;
+    }
+
+    private Iterable<RingKey> indexRange(int leftID, int rightID) {
+        return RingKey.range(ringIndex, leftID, rightID);
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static class Entry {
+        private final int ringID;
+        private final ByteString value;
+
+        Entry(int ringID, ByteString value) {
+            this.ringID = ringID;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package storage;
+
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Primary key/value storage of a node, ordered by the ring position of the keys.
+ *
+ * Values are raw bytes, carried as {@link ByteString} so they go in and out of protos as they are.
+ * Range arguments follow the ring: (leftID, rightID] walking clockwise, wrapping around zero
+ * when leftID >= rightID.
+ */
+public interface StorageEngine extends Closeable {
+
+    //    engines that keep values off the heap hand them out without copying them first
+    ByteString get(String key);
+
+    boolean containsKey(String key);
+
+    void put(String key, ByteString value);
+
+    //    for callers that already hashed the key to check ownership
+    void put(String key, int ringID, ByteString value);
+
+    ByteString remove(String key);
+
+    int size();
+
+    void forEach(BiConsumer<String, ByteString> action);
+
+    List<String> keysInRange(int leftID, int rightID);
+
+    Map<String, ByteString> entriesInRange(int leftID, int rightID);
+
+    default void putAll(Map<String, ByteString> data) {
+        for (Map.Entry<String, ByteString> entry : data.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    default Map<String, ByteString> snapshot() {
+        Map<String, ByteString> copy = new HashMap<>();
+        forEach(copy::put);
+        return copy;
+    }
+
+    @Override
+    default void close() {
+    }
+}
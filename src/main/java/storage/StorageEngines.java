@@ -0,0 +1,51 @@
+package storage;
+
+import common.Hasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Picks the storage engine of a node from system properties.
+ */
+public final class StorageEngines {
+
+    public enum Engine {
+        //        everything on the heap, lost on restart
+        MEMORY,
+        //        write-ahead log and sorted segment files, see {@link LogStructuredStore}
+        LOG,
+        //        like LOG, with segment files memory-mapped and values served from the mapping
+        MAPPED
+    }
+
+    public static final String ENGINE_PROPERTY = "chord.storage";
+    public static final String DIRECTORY_PROPERTY = "chord.storage.dir";
+
+    private StorageEngines() {
+    }
+
+    //    -Dchord.storage=LOG keeps the data of every node under -Dchord.storage.dir (default ./data)
+    public static Engine defaultEngine() {
+        return Engine.valueOf(System.getProperty(ENGINE_PROPERTY, Engine.MEMORY.name()).toUpperCase());
+    }
+
+    public static StorageEngine open(Hasher hasher, String nodeName) {
+        return open(defaultEngine(), hasher, new File(System.getProperty(DIRECTORY_PROPERTY, "data"), nodeName));
+    }
+
+    public static StorageEngine open(Engine engine, Hasher hasher, File directory) {
+        switch (engine) {
+            case LOG:
+            case MAPPED:
+                try {
+                    return new LogStructuredStore(hasher, directory, engine == Engine.MAPPED);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open storage at " + directory, e);
+                }
+            default:
+                return new RingOrderedStore(hasher);
+        }
+    }
+}
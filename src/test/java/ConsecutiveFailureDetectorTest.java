@@ -0,0 +1,40 @@
+import junit.framework.TestCase;
+import manager.ConsecutiveFailureDetector;
+import org.junit.Test;
+
+public class ConsecutiveFailureDetectorTest extends TestCase {
+    private ConsecutiveFailureDetector detector;
+
+    public void setUp() {
+        detector = new ConsecutiveFailureDetector(3);
+    }
+
+    @Test
+    public void testFailsAfterThresholdInARow() {
+        assertFalse(detector.recordFailure(7));
+        assertFalse(detector.recordFailure(7));
+        assertTrue(detector.recordFailure(7));
+        assertEquals(3, detector.failures(7));
+    }
+
+    @Test
+    public void testSuccessResetsCount() {
+        detector.recordFailure(7);
+        detector.recordFailure(7);
+        detector.recordSuccess(7);
+        assertEquals(0, detector.failures(7));
+        assertFalse(detector.recordFailure(7));
+        assertFalse(detector.recordFailure(7));
+    }
+
+    @Test
+    public void testNodesAreCountedSeparately() {
+        detector.recordFailure(1);
+        detector.recordFailure(1);
+        assertFalse(detector.recordFailure(2));
+        assertTrue(detector.recordFailure(1));
+        detector.forget(1);
+        assertEquals(0, detector.failures(1));
+        assertEquals(1, detector.failures(2));
+    }
+}
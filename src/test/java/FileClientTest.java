@@ -0,0 +1,217 @@
+import client.Client;
+import client.FileClient;
+import com.google.protobuf.ByteString;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import junit.framework.TestCase;
+import net.grpc.chord.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FileClientTest extends TestCase {
+    private static final int CHUNK_SIZE = 16;
+
+    private StubRing ring;
+    private Map<String, String> namespace;
+    private FileClient fileClient;
+    private Server holderServer;
+
+    public void setUp() {
+        ring = new StubRing();
+        namespace = new ConcurrentHashMap<>();
+        fileClient = newFileClient();
+    }
+
+    public void tearDown() {
+        fileClient.close();
+        if (holderServer != null) holderServer.shutdownNow();
+    }
+
+    private FileClient newFileClient() {
+        return new FileClient(ring, "localhost", -1, CHUNK_SIZE, 2) {
+            @Override
+            protected boolean linkFile(String absPath, String fileKey) {
+                namespace.put(absPath, fileKey);
+                return true;
+            }
+
+            @Override
+            protected String lookupFileKey(String absPath) {
+                return namespace.get(absPath);
+            }
+        };
+    }
+
+    private static ByteString content(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte) (i * 31 + 7);
+        return ByteString.copyFrom(bytes);
+    }
+
+    //    hands out at most three bytes per read, like a slow socket
+    private static InputStream trickle(ByteString content) {
+        return new ByteArrayInputStream(content.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(3, length));
+            }
+        };
+    }
+
+    @Test
+    public void testShortReadsStillFillWholeChunks() throws IOException {
+        ByteString data = content(2 * CHUNK_SIZE + 1);
+        fileClient.upload("/a/file", trickle(data));
+
+        FileManifest manifest = fileClient.readManifest("/a/file");
+        assertEquals(3, manifest.getChunkKeysCount());
+        assertEquals(data.size(), manifest.getSize());
+        assertEquals(CHUNK_SIZE, manifest.getChunkSize());
+        assertEquals(CHUNK_SIZE, ring.stored.get(manifest.getChunkKeys(0)).size());
+        assertEquals(CHUNK_SIZE, ring.stored.get(manifest.getChunkKeys(1)).size());
+        assertEquals(1, ring.stored.get(manifest.getChunkKeys(2)).size());
+        assertEquals(data, fileClient.download("/a/file"));
+    }
+
+    @Test
+    public void testExactMultipleHasNoEmptyTrailingChunk() throws IOException {
+        ByteString data = content(2 * CHUNK_SIZE);
+        fileClient.upload("/a/even", data);
+
+        FileManifest manifest = fileClient.readManifest("/a/even");
+        assertEquals(2, manifest.getChunkKeysCount());
+        assertEquals(2 * CHUNK_SIZE, manifest.getSize());
+        assertEquals(data, fileClient.download("/a/even"));
+    }
+
+    @Test
+    public void testDuplicateChunksAreStoredOnce() throws IOException {
+        ByteString block = content(CHUNK_SIZE);
+        ByteString data = block.concat(block).concat(block).concat(ByteString.copyFromUtf8("tail"));
+        String fileKey = fileClient.upload("/dup", data);
+
+        FileManifest manifest = fileClient.readManifest("/dup");
+        assertEquals(4, manifest.getChunkKeysCount());
+        assertEquals(manifest.getChunkKeys(0), manifest.getChunkKeys(1));
+        assertEquals(manifest.getChunkKeys(0), manifest.getChunkKeys(2));
+//        two distinct chunks and the manifest
+        assertEquals(3, ring.puts.get());
+        assertTrue(ring.stored.containsKey(fileKey));
+        assertEquals(data, fileClient.download("/dup"));
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        fileClient.upload("/empty", ByteString.EMPTY);
+
+        FileManifest manifest = fileClient.readManifest("/empty");
+        assertEquals(0, manifest.getChunkKeysCount());
+        assertEquals(0, manifest.getSize());
+        assertEquals(1, ring.puts.get());
+        assertEquals(ByteString.EMPTY, fileClient.download("/empty"));
+        assertEquals(-1, fileClient.openStream("/empty").read());
+    }
+
+    @Test
+    public void testMissingFile() throws IOException {
+        try {
+            fileClient.readManifest("/none");
+            fail();
+        } catch (FileNotFoundException e) {
+            assertEquals("/none", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLastChunkIsStripedByItsOwnLength() throws IOException {
+        StripeHolder holder = new StripeHolder(ring.stored);
+        holderServer = ServerBuilder.forPort(0).addService(holder).build().start();
+        Identifier node = Identifier.newBuilder().setID(1).setIP("localhost").setPort(holderServer.getPort()).build();
+        ring.holders = Arrays.asList(node, node);
+        fileClient.setStripeSize(4);
+
+        ByteString data = content(CHUNK_SIZE + 5);
+        fileClient.upload("/striped", data);
+        FileManifest manifest = fileClient.readManifest("/striped");
+        int getsBeforeDownload = ring.gets.get();
+
+        assertEquals(data, fileClient.download("/striped"));
+//        4 stripes for the full chunk and 2 for the 5 byte one, all answered by the holders
+        assertEquals(Arrays.asList(0L, 4L, 8L, 12L), holder.offsetsOf(manifest.getChunkKeys(0)));
+        assertEquals(Arrays.asList(0L, 4L), holder.offsetsOf(manifest.getChunkKeys(1)));
+//        only the manifest came from a plain get, no chunk fell back to the owner
+        assertEquals(getsBeforeDownload + 1, ring.gets.get());
+    }
+
+    //    the ring as a map, every key owned by the configured holders
+    private static class StubRing extends Client {
+        private final Map<String, ByteString> stored = new ConcurrentHashMap<>();
+        private final AtomicInteger puts = new AtomicInteger();
+        private final AtomicInteger gets = new AtomicInteger();
+        private volatile List<Identifier> holders = Arrays.asList(Identifier.newBuilder().setID(0).build());
+
+        @Override
+        public boolean put(String key, ByteString value) {
+            puts.incrementAndGet();
+            stored.put(key, value);
+            return true;
+        }
+
+        @Override
+        public ByteString get(String key) {
+            gets.incrementAndGet();
+            return stored.get(key);
+        }
+
+        @Override
+        public List<Identifier> holders(String key, int replicas) {
+            return holders;
+        }
+    }
+
+    //    answers range reads from the stub ring and remembers the offsets asked for per key
+    private static class StripeHolder extends ChordNodeServiceGrpc.ChordNodeServiceImplBase {
+        private final Map<String, ByteString> stored;
+        private final Map<String, List<Long>> offsets = new ConcurrentHashMap<>();
+
+        StripeHolder(Map<String, ByteString> stored) {
+            this.stored = stored;
+        }
+
+        List<Long> offsetsOf(String key) {
+            List<Long> sorted = new ArrayList<>(offsets.get(key));
+            sorted.sort(null);
+            return sorted;
+        }
+
+        @Override
+        public void getRange(GetRangeRequest request, StreamObserver<GetResponse> responseObserver) {
+            offsets.computeIfAbsent(request.getKey(), k -> new ArrayList<>());
+            synchronized (offsets.get(request.getKey())) {
+                offsets.get(request.getKey()).add(request.getOffset());
+            }
+            ByteString value = stored.get(request.getKey());
+            GetResponse.Builder response = GetResponse.newBuilder();
+            if (value == null || request.getOffset() > value.size()) {
+                response.setRet(ReturnCode.FAILURE);
+            } else {
+                int start = (int) request.getOffset();
+                int end = (int) Math.min(value.size(), start + (long) request.getLength());
+                response.setValue(value.substring(start, end)).setRet(ReturnCode.SUCCESS);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import com.google.protobuf.ByteString;
+import junit.framework.TestCase;
+import manager.FileNamespace;
+import net.grpc.chord.GetResponse;
+import net.grpc.chord.ReturnCode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FileNamespaceTest extends TestCase {
+    private FileNamespace namespace;
+
+    public void setUp() {
+        namespace = new FileNamespace();
+    }
+
+    @Test
+    public void testReadBackWrittenKeys() {
+        assertTrue(namespace.writeFileKey("/movie/spiderman2.mp4", "key1"));
+        assertTrue(namespace.writeFileKey("movie/marvel/ironman.mp4", "key2"));
+        assertTrue(namespace.writeFileKey("readme.txt", "key3"));
+
+        assertEquals("key1", namespace.readFileKey("movie/spiderman2.mp4"));
+        assertEquals("key2", namespace.readFileKey("/movie//marvel/ironman.mp4"));
+        assertEquals("key3", namespace.readFileKey("/readme.txt"));
+        assertNull(namespace.readFileKey("/movie/batman.mp4"));
+        assertNull(namespace.readFileKey("/music/song.mp3"));
+        assertFalse(namespace.writeFileKey("/", "key4"));
+    }
+
+    @Test
+    public void testListsTheTargetDirectory() {
+        namespace.writeFileKey("/movie/spiderman2.mp4", "key1");
+        namespace.writeFileKey("/movie/marvel/ironman.mp4", "key2");
+        namespace.writeFileKey("/readme.txt", "key3");
+
+        FileNamespace.Listing root = namespace.list("/");
+        assertEquals(Arrays.asList("movie"), root.getDirs());
+        assertEquals(Arrays.asList("readme.txt"), root.getFiles());
+
+        FileNamespace.Listing movie = namespace.list("/movie");
+        assertEquals(Arrays.asList("marvel"), movie.getDirs());
+        assertEquals(Arrays.asList("spiderman2.mp4"), movie.getFiles());
+
+        assertTrue(namespace.list("/movie/marvel").getDirs().isEmpty());
+        assertNull(namespace.list("/music"));
+    }
+
+    @Test
+    public void testConcurrentWritersInSharedDirectories() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int writer = t;
+            writers.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    namespace.writeFileKey("/dir" + (i % 10) + "/sub" + (i % 3) + "/file" + writer + "_" + i, "key" + writer + "_" + i);
+                }
+            }));
+        }
+        for (Future<?> future : writers) future.get();
+        pool.shutdown();
+
+        assertEquals(10, namespace.list("/").getDirs().size());
+        int files = 0;
+        for (int d = 0; d < 10; d++) {
+            assertEquals(3, namespace.list("/dir" + d).getDirs().size());
+            for (int s = 0; s < 3; s++) {
+                files += namespace.list("/dir" + d + "/sub" + s).getFiles().size();
+            }
+        }
+        assertEquals(8 * 500, files);
+        assertEquals("key3_42", namespace.readFileKey("/dir2/sub0/file3_42"));
+    }
+
+    @Test
+    public void testDirectoriesAreRecordsInTheStore() {
+        FlakyStore store = new FlakyStore();
+        namespace = new FileNamespace(store);
+        namespace.writeFileKey("/movie/marvel/ironman.mp4", "key1");
+
+        assertEquals(3, store.records.size());
+        assertTrue(store.records.containsKey(FileNamespace.DIRECTORY_PREFIX + "movie/marvel"));
+        assertEquals("key1", new FileNamespace(store).readFileKey("/movie/marvel/ironman.mp4"));
+    }
+
+    @Test
+    public void testFailedWriteIsCompletedByTheNextOne() {
+        FlakyStore store = new FlakyStore();
+        namespace = new FileNamespace(store);
+//        the root takes "movie", then writing the new directory fails
+        store.putsBeforeFailure = 1;
+        assertFalse(namespace.writeFileKey("/movie/marvel/ironman.mp4", "key1"));
+        assertNull(namespace.readFileKey("/movie/marvel/ironman.mp4"));
+
+        store.putsBeforeFailure = Integer.MAX_VALUE;
+        assertTrue(namespace.writeFileKey("/movie/marvel/ironman.mp4", "key1"));
+        assertEquals("key1", namespace.readFileKey("/movie/marvel/ironman.mp4"));
+        assertEquals(Arrays.asList("movie"), namespace.list("/").getDirs());
+        assertEquals(Arrays.asList("marvel"), namespace.list("/movie").getDirs());
+    }
+
+    //    a map that can be told to fail its puts after a number of them
+    private static class FlakyStore implements FileNamespace.Store {
+        private final Map<String, ByteString> records = new ConcurrentHashMap<>();
+        private volatile int putsBeforeFailure = Integer.MAX_VALUE;
+
+        @Override
+        public GetResponse get(String key) {
+            ByteString value = records.get(key);
+            return value == null ? GetResponse.newBuilder().setRet(ReturnCode.FAILURE).build()
+                    : GetResponse.newBuilder().setValue(value).setRet(ReturnCode.SUCCESS).build();
+        }
+
+        @Override
+        public boolean put(String key, ByteString value) {
+            if (putsBeforeFailure-- <= 0) return false;
+            records.put(key, value);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import com.google.common.hash.Hashing;
+import common.Hasher;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class HasherTest extends TestCase {
+    private int ringSizeExp = 10;
+    private int ringSize = 8192;
+    private int buckets = 64;
+
+    private String[] keys;
+
+    public void setUp() {
+        // same key volume as KeyDistributionTest
+        keys = new String[10 * (1 << ringSizeExp)];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.valueOf(1559000000000L + i * 7L);
+        }
+    }
+
+    private void assertUniform(Hasher hasher) {
+        int[] counts = new int[buckets];
+        for (String key : keys) {
+            int id = hasher.hash(key);
+            assertTrue(id >= 0 && id < ringSize);
+            counts[id * buckets / ringSize]++;
+        }
+        double expected = (double) keys.length / buckets;
+        for (int count : counts) {
+            assertTrue(hasher.getMode() + " bucket " + count + " vs " + expected, count > expected * 0.5 && count < expected * 1.5);
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        for (Hasher.Mode mode : Hasher.Mode.values()) {
+            assertUniform(new Hasher(ringSize, mode));
+        }
+    }
+
+    @Test
+    public void testSha1ModeUsesDigestPrefix() {
+        Hasher hasher = new Hasher(ringSize, Hasher.Mode.SHA1);
+        for (String key : new String[]{"", "spiderman2.mp4", "café", "中文", "😀", keys[0]}) {
+            byte[] digest = DigestUtils.sha1(key);
+            int prefix = ((digest[0] & 0xff) << 24) | ((digest[1] & 0xff) << 16) | ((digest[2] & 0xff) << 8) | (digest[3] & 0xff);
+            assertEquals(key, (prefix & 0x7fffffff) % ringSize, hasher.hash(key));
+        }
+    }
+
+    @Test
+    public void testMurmur3ModeMatchesReference() {
+        Hasher hasher = new Hasher(ringSize, Hasher.Mode.MURMUR3);
+        for (String key : new String[]{"", "a", "ab", "abc", "spiderman2.mp4", keys[42]}) {
+            int reference = Hashing.murmur3_32().hashUnencodedChars(key).asInt();
+            assertEquals(key, (reference & 0x7fffffff) % ringSize, hasher.hash(key));
+        }
+    }
+
+    @Test
+    public void testLegacyModeIsUnchanged() {
+        Hasher hasher = new Hasher(ringSize, Hasher.Mode.SHA1_HEX);
+        for (String key : keys) {
+            assertEquals(Math.abs(DigestUtils.sha1Hex(key).hashCode()) % ringSize, hasher.hash(key));
+        }
+    }
+}
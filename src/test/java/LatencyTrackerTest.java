@@ -0,0 +1,40 @@
+import client.LatencyTracker;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class LatencyTrackerTest extends TestCase {
+    private LatencyTracker tracker;
+
+    public void setUp() {
+        tracker = new LatencyTracker(100);
+    }
+
+    @Test
+    public void testEmptyTracker() {
+        assertEquals(-1, tracker.percentile(95));
+        assertEquals(0, tracker.count());
+    }
+
+    @Test
+    public void testPercentiles() {
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+        assertEquals(50, tracker.percentile(50));
+        assertEquals(95, tracker.percentile(95));
+        assertEquals(100, tracker.percentile(100));
+        assertEquals(1, tracker.percentile(0));
+    }
+
+    @Test
+    public void testOldSamplesAreForgotten() {
+        for (int i = 0; i < 100; i++) {
+            tracker.record(1000);
+        }
+        for (int i = 0; i < 100; i++) {
+            tracker.record(10);
+        }
+        assertEquals(100, tracker.count());
+        assertEquals(10, tracker.percentile(99));
+    }
+}
@@ -0,0 +1,156 @@
+import common.Hasher;
+import junit.framework.TestCase;
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import storage.LogStructuredStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+
+public class LogStructuredStoreTest extends TestCase {
+    private LogStructuredStore store;
+    private Hasher hasher;
+    private File directory;
+    private int ringSizeExp = 13;
+
+    public void setUp() throws IOException {
+        hasher = new Hasher(1 << ringSizeExp);
+        directory = Files.createTempDirectory("chord-storage").toFile();
+        store = open();
+    }
+
+    public void tearDown() {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    private static ByteString bytes(String value) {
+        return ByteString.copyFromUtf8(value);
+    }
+
+    private LogStructuredStore open() throws IOException {
+        LogStructuredStore opened = new LogStructuredStore(hasher, directory);
+        //        small memtable so the tests go through flushes and compactions
+        opened.setMemtableLimitBytes(4096);
+        opened.setCompactionThreshold(3);
+        return opened;
+    }
+
+    private LogStructuredStore reopen() throws IOException {
+        store.close();
+        store = open();
+        return store;
+    }
+
+    @Test
+    public void testDataSurvivesRestart() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, bytes("value" + i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            store.remove("key" + i);
+        }
+        store.put("key1", bytes("updated"));
+
+        reopen();
+
+        assertEquals(500, store.size());
+        assertEquals(bytes("updated"), store.get("key1"));
+        assertEquals(bytes("value3"), store.get("key3"));
+        assertNull(store.get("key2"));
+    }
+
+    @Test
+    public void testRangeQueriesAfterRestart() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, bytes("value" + i));
+        }
+        reopen();
+
+        Map<String, ByteString> data = store.entriesInRange(4000, 100);
+        for (Map.Entry<String, ByteString> entry : data.entrySet()) {
+            int id = hasher.hash(entry.getKey());
+            assertTrue(id > 4000 || id <= 100);
+            assertEquals(bytes("value" + entry.getKey().substring(3)), entry.getValue());
+        }
+        assertEquals(new HashSet<>(store.keysInRange(4000, 100)), data.keySet());
+        assertEquals(1000, store.keysInRange(4000, 100).size() + store.keysInRange(100, 4000).size());
+    }
+
+    @Test
+    public void testCompactionKeepsLatestValues() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 200; i++) {
+                store.put("key" + i, bytes("value" + i + "-" + round));
+            }
+        }
+        for (int i = 0; i < 20 && store.segmentCount() >= 3; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(store.segmentCount() < 3);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(bytes("value" + i + "-9"), store.get("key" + i));
+        }
+
+        reopen();
+        assertEquals(200, store.size());
+        assertEquals(bytes("value7-9"), store.get("key7"));
+    }
+
+    @Test
+    public void testTornLogTailIsDropped() throws IOException {
+        store.put("kept", bytes("value"));
+        store.close();
+        try (FileOutputStream log = new FileOutputStream(new File(directory, "wal.log"), true)) {
+            log.write(new byte[]{0, 0, 0, 42, 1, 2});
+        }
+        store = open();
+        store.put("after", bytes("value"));
+
+        reopen();
+        assertEquals(bytes("value"), store.get("kept"));
+        assertEquals(bytes("value"), store.get("after"));
+    }
+
+    @Test
+    public void testTornLengthIsNotAllocated() throws IOException {
+        store.put("kept", bytes("value"));
+        store.close();
+        try (FileOutputStream log = new FileOutputStream(new File(directory, "wal.log"), true)) {
+            log.write(new byte[]{0x7f, -1, -1, -1, 0, 0, 0, 0, 1, 2, 3});
+        }
+        store = open();
+        store.put("after", bytes("value"));
+
+        reopen();
+        assertEquals(bytes("value"), store.get("kept"));
+        assertEquals(bytes("value"), store.get("after"));
+    }
+
+    @Test
+    public void testMappedReadsServeStoredBytes() throws IOException {
+        store.close();
+        store = new LogStructuredStore(hasher, directory, true);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) large.append((char) ('a' + i % 26));
+        store.put("large", bytes(large.toString()));
+        store.put("unicode", bytes("\u00e9t\u00e9"));
+        store.flush();
+
+        assertEquals(bytes(large.toString()), store.get("large"));
+        assertEquals(bytes("\u00e9t\u00e9"), store.get("unicode"));
+
+        store.close();
+        store = new LogStructuredStore(hasher, directory, true);
+        assertEquals(100000, store.get("large").size());
+        assertNull(store.get("missing"));
+    }
+}
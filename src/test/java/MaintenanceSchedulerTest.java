@@ -0,0 +1,82 @@
+import junit.framework.TestCase;
+import node.MaintenanceScheduler;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MaintenanceSchedulerTest extends TestCase {
+    private MaintenanceScheduler scheduler;
+
+    public void setUp() {
+        scheduler = new MaintenanceScheduler("test");
+    }
+
+    public void tearDown() {
+        scheduler.cancel();
+    }
+
+    @Test
+    public void testBacksOffWhileNothingChanges() throws InterruptedException {
+        AtomicInteger rounds = new AtomicInteger();
+        MaintenanceScheduler.AdaptiveTask task = scheduler.schedule("idle", () -> {
+            rounds.incrementAndGet();
+            return false;
+        }, 10, 80, 0);
+
+        Thread.sleep(600);
+        assertEquals(80, task.getIntervalMillis());
+//        10 + 20 + 40 and then every 80 ms, far fewer rounds than at a fixed 10 ms
+        assertTrue(rounds.get() < 15);
+    }
+
+    @Test
+    public void testChurnResetsEveryTask() throws InterruptedException {
+        AtomicBoolean churning = new AtomicBoolean(false);
+        MaintenanceScheduler.AdaptiveTask idle = scheduler.schedule("idle", () -> false, 10, 80, 0);
+        MaintenanceScheduler.AdaptiveTask watcher = scheduler.schedule("watcher", churning::get, 10, 80, 0);
+        Thread.sleep(400);
+        assertEquals(80, idle.getIntervalMillis());
+
+        churning.set(true);
+        Thread.sleep(200);
+        assertEquals(10, watcher.getIntervalMillis());
+        assertTrue(idle.getIntervalMillis() < 80);
+    }
+
+    @Test
+    public void testTasksOfOneNodeDoNotOverlap() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        for (int i = 0; i < 4; i++) {
+            scheduler.schedule("task" + i, () -> {
+                if (running.incrementAndGet() > 1) overlapped.set(true);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return true;
+            }, 1, 1, 0);
+        }
+        Thread.sleep(300);
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void testCancelStopsRounds() throws InterruptedException {
+        AtomicInteger rounds = new AtomicInteger();
+        scheduler.schedule("task", () -> {
+            rounds.incrementAndGet();
+            return true;
+        }, 5, 5, 0);
+        Thread.sleep(100);
+        scheduler.cancel();
+        Thread.sleep(50);
+        int afterCancel = rounds.get();
+        Thread.sleep(100);
+        assertEquals(afterCancel, rounds.get());
+        assertTrue(scheduler.isCancelled());
+    }
+}
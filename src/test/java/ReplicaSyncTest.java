@@ -0,0 +1,116 @@
+import com.google.protobuf.ByteString;
+import common.Hasher;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import junit.framework.TestCase;
+import net.grpc.chord.Identifier;
+import node.ChordNodeClient;
+import node.ChordNodeService;
+import node.ReplicaSync;
+import org.junit.Test;
+import storage.HashTreeStore;
+import storage.RingOrderedStore;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReplicaSyncTest extends TestCase {
+    private static final int KEYS = 50000;
+
+    private int ringSizeExp = 5;
+    private Hasher hasher;
+    private HashTreeStore primary;
+    private Identifier self;
+    private Server server;
+    private ChordNodeClient successorClient;
+
+    public void setUp() throws IOException {
+        hasher = new Hasher(1 << ringSizeExp);
+        primary = new HashTreeStore(new RingOrderedStore(hasher), hasher);
+//        a small ring crowds many keys into every leaf
+        for (int i = 0; i < KEYS; i++) {
+            primary.put("key" + i, ByteString.copyFromUtf8("value" + i));
+        }
+        self = Identifier.newBuilder().setID(7).setIP("localhost").setPort(1).build();
+
+        String name = "replica-sync-" + System.nanoTime();
+        server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new ChordNodeService(9, "localhost", 2, ringSizeExp)).build().start();
+        successorClient = new ChordNodeClient(InProcessChannelBuilder.forName(name).directExecutor());
+    }
+
+    public void tearDown() {
+        successorClient.close();
+        server.shutdownNow();
+    }
+
+    private ReplicaSync newSync(int pageBytes) {
+        ReplicaSync sync = new ReplicaSync(primary, self, successorClient);
+        sync.setPageBytes(pageBytes);
+        return sync;
+    }
+
+    private boolean inSync() {
+        return successorClient.replicaDigest(self, Collections.singletonList(1)).get(0) == primary.tree().hash(1);
+    }
+
+    @Test
+    public void testEmptyReplicaIsShippedWithoutListingEntries() {
+        ReplicaSync sync = newSync(ReplicaSync.MAX_PAGE_BYTES);
+        assertTrue(sync.run());
+        assertEquals(KEYS, sync.getShipped());
+        assertEquals(0, sync.getPages());
+        assertTrue(inSync());
+        assertFalse(newSync(ReplicaSync.MAX_PAGE_BYTES).run());
+    }
+
+    @Test
+    public void testCrowdedReplicaMissingOneKeyIsRepairedPageByPage() {
+        assertTrue(newSync(ReplicaSync.MAX_PAGE_BYTES).run());
+        successorClient.removeMultipleScatteredReplica(self, Collections.singletonList("key4242"));
+        assertFalse(inSync());
+
+        ReplicaSync sync = newSync(128);
+        assertTrue(sync.run());
+        assertEquals(1, sync.getShipped());
+        assertEquals(0, sync.getRemoved());
+//        the differing leaf did not fit one page
+        assertTrue(sync.getPages() > 1);
+        assertTrue(inSync());
+    }
+
+    @Test
+    public void testChangedAndExtraKeysAreRepaired() {
+        assertTrue(newSync(ReplicaSync.MAX_PAGE_BYTES).run());
+        primary.put("key17", ByteString.copyFromUtf8("changed"));
+        Map<String, ByteString> extra = new HashMap<>();
+        extra.put("gone", ByteString.copyFromUtf8("value"));
+        successorClient.addMultipleScatteredReplica(self, extra);
+
+        ReplicaSync sync = newSync(128);
+        assertTrue(sync.run());
+        assertEquals(1, sync.getShipped());
+        assertEquals(1, sync.getRemoved());
+        assertTrue(inSync());
+    }
+
+    @Test
+    public void testRecoveredDataIsHashedInTheBackground() throws InterruptedException {
+        RingOrderedStore recovered = new RingOrderedStore(hasher);
+        for (int i = 0; i < KEYS; i++) {
+            recovered.put("key" + i, ByteString.copyFromUtf8("value" + i));
+        }
+        HashTreeStore reopened = new HashTreeStore(recovered, hasher);
+        reopened.put("key1", ByteString.copyFromUtf8("value1"));
+        reopened.remove("key2", hasher.hash("key2"));
+        primary.remove("key2", hasher.hash("key2"));
+
+        for (int i = 0; i < 100 && !reopened.isTreeReady(); i++) Thread.sleep(50);
+        assertTrue(reopened.isTreeReady());
+        assertEquals(primary.tree().hash(1), reopened.tree().hash(1));
+        assertNull(reopened.get("key2"));
+    }
+}
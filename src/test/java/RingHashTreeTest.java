@@ -0,0 +1,140 @@
+import com.google.protobuf.ByteString;
+import common.Hasher;
+import junit.framework.TestCase;
+import org.junit.Test;
+import storage.HashTreeStore;
+import storage.RingHashTree;
+import storage.RingOrderedStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RingHashTreeTest extends TestCase {
+    private Hasher hasher;
+    private int ringSizeExp = 13;
+
+    public void setUp() {
+        hasher = new Hasher(1 << ringSizeExp);
+    }
+
+    private HashTreeStore newStore() {
+        return new HashTreeStore(new RingOrderedStore(hasher), hasher);
+    }
+
+    private static ByteString bytes(String value) {
+        return ByteString.copyFromUtf8(value);
+    }
+
+    //    leaves under node whose hashes differ between the two trees
+    private List<Integer> differingLeaves(RingHashTree left, RingHashTree right, int node) {
+        List<Integer> leaves = new ArrayList<>();
+        if (left.hash(node) == right.hash(node)) return leaves;
+        if (left.isLeaf(node)) {
+            leaves.add(node);
+            return leaves;
+        }
+        leaves.addAll(differingLeaves(left, right, 2 * node));
+        leaves.addAll(differingLeaves(left, right, 2 * node + 1));
+        return leaves;
+    }
+
+    @Test
+    public void testSameContentSameRootInAnyOrder() {
+        HashTreeStore forward = newStore();
+        HashTreeStore backward = newStore();
+        for (int i = 0; i < 1000; i++) {
+            forward.put("key" + i, bytes("value" + i));
+        }
+        for (int i = 999; i >= 0; i--) {
+            backward.put("key" + i, bytes("stale" + i));
+            backward.put("key" + i, bytes("value" + i));
+        }
+        assertEquals(forward.tree().hash(1), backward.tree().hash(1));
+        assertTrue(differingLeaves(forward.tree(), backward.tree(), 1).isEmpty());
+    }
+
+    @Test
+    public void testChangedValueOnlyDiffersInItsLeaf() {
+        HashTreeStore original = newStore();
+        HashTreeStore changed = newStore();
+        for (int i = 0; i < 1000; i++) {
+            original.put("key" + i, bytes("value" + i));
+            changed.put("key" + i, bytes("value" + i));
+        }
+        changed.put("key42", bytes("other"));
+
+        List<Integer> leaves = differingLeaves(original.tree(), changed.tree(), 1);
+        assertEquals(1, leaves.size());
+        assertTrue(changed.tree().entries(leaves.get(0)).containsKey("key42"));
+        assertFalse(original.tree().entries(leaves.get(0)).get("key42").equals(changed.tree().entries(leaves.get(0)).get("key42")));
+    }
+
+    @Test
+    public void testRemoveRestoresHash() {
+        HashTreeStore store = newStore();
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, bytes("value" + i));
+        }
+        long before = store.tree().hash(1);
+        store.put("extra", bytes("extra"));
+        assertFalse(before == store.tree().hash(1));
+        store.remove("extra");
+        assertEquals(before, store.tree().hash(1));
+
+        for (int i = 0; i < 100; i++) {
+            store.remove("key" + i);
+        }
+        assertEquals(0, store.tree().hash(1));
+    }
+
+    @Test
+    public void testCrowdedRangeSplitsIntoSmallLeaves() {
+        HashTreeStore original = newStore();
+        HashTreeStore changed = newStore();
+//        every key on the same ring position, as on a node owning a single position
+        for (int i = 0; i < 6400; i++) {
+            original.put("key" + i, 5, bytes("value" + i));
+            changed.put("key" + i, 5, bytes("value" + i));
+        }
+        changed.put("key42", 5, bytes("other"));
+
+        List<Integer> leaves = differingLeaves(original.tree(), changed.tree(), 1);
+        assertEquals(1, leaves.size());
+        int keysInLeaf = changed.tree().entries(leaves.get(0)).size();
+        assertTrue(keysInLeaf > 0 && keysInLeaf < 400);
+    }
+
+    @Test
+    public void testPagesCoverEveryEntryOnce() {
+        HashTreeStore store = newStore();
+        for (int i = 0; i < 5000; i++) {
+            store.put("key" + i, 5, bytes("value" + i));
+        }
+        RingHashTree tree = store.tree();
+        List<Integer> nodes = new ArrayList<>();
+        nodes.add(2);
+        nodes.add(3);
+
+        Map<String, Long> collected = new HashMap<>();
+        RingHashTree.Cursor cursor = null;
+        int pages = 0;
+        do {
+            RingHashTree.Page page = tree.page(nodes, cursor, 1000);
+            long bytes = 0;
+            for (String key : page.getEntries().keySet()) {
+                bytes += RingHashTree.entryBytes(key);
+                assertNull(collected.put(key, page.getEntries().get(key)));
+            }
+            assertTrue(bytes <= 1000);
+            cursor = page.getNext();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(tree.entries(1), collected);
+        assertTrue(pages > 100);
+        assertNull(tree.page(Collections.singletonList(1), null, 1 << 20).getNext());
+    }
+}
@@ -0,0 +1,69 @@
+import com.google.protobuf.ByteString;
+import common.Hasher;
+import junit.framework.TestCase;
+import org.junit.Test;
+import storage.RingOrderedStore;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RingOrderedStoreTest extends TestCase {
+    private RingOrderedStore store;
+    public Hasher hasher;
+    private int ringSizeExp = 13;
+
+    public void setUp() {
+        hasher = new Hasher(1 << ringSizeExp);
+        store = new RingOrderedStore(hasher);
+        for (int i = 0; i < 2000; i++) {
+            store.put("key" + i, ByteString.copyFromUtf8("value" + i));
+        }
+    }
+
+    private boolean inRange(int id, int leftID, int rightID) {
+        if (leftID < rightID) {
+            return id > leftID && id <= rightID;
+        } else {
+            return id > leftID || id <= rightID;
+        }
+    }
+
+    private void assertRangeMatchesFullScan(int leftID, int rightID) {
+        Set<String> expected = new HashSet<>();
+        store.forEach((key, value) -> {
+            if (inRange(hasher.hash(key), leftID, rightID)) expected.add(key);
+        });
+        List<String> keys = store.keysInRange(leftID, rightID);
+        assertEquals(expected, new HashSet<>(keys));
+        assertEquals(expected.size(), keys.size());
+    }
+
+    @Test
+    public void testRangeMatchesFullScan() {
+        assertRangeMatchesFullScan(100, 4000);
+        assertRangeMatchesFullScan(4000, 100);
+        assertRangeMatchesFullScan(8000, 8191);
+        assertRangeMatchesFullScan(-1, 0);
+    }
+
+    @Test
+    public void testRemovedKeysLeaveTheIndex() {
+        for (String key : store.keysInRange(0, 4096)) {
+            store.remove(key);
+        }
+        assertTrue(store.keysInRange(0, 4096).isEmpty());
+        assertRangeMatchesFullScan(4096, 0);
+    }
+
+    @Test
+    public void testEntriesInRange() {
+        Map<String, ByteString> data = store.entriesInRange(-1, 2048);
+        for (Map.Entry<String, ByteString> entry : data.entrySet()) {
+            assertTrue(hasher.hash(entry.getKey()) <= 2048);
+            assertEquals(store.get(entry.getKey()), entry.getValue());
+        }
+        assertRangeMatchesFullScan(-1, 2048);
+    }
+}
@@ -0,0 +1,67 @@
+import client.RingRoutingCache;
+import junit.framework.TestCase;
+import net.grpc.chord.Identifier;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class RingRoutingCacheTest extends TestCase {
+    private RingRoutingCache cache;
+    private int ringSize = 8192;
+
+    public void setUp() {
+        cache = new RingRoutingCache(ringSize);
+    }
+
+    private Identifier node(int id) {
+        return Identifier.newBuilder().setID(id).setIP("localhost").setPort(9700 + id).build();
+    }
+
+    @Test
+    public void testLearnedOwnerCoversOnlyKnownRange() {
+        cache.learnOwner(100, node(200));
+
+        assertEquals(200, cache.lookup(100).getID());
+        assertEquals(200, cache.lookup(200).getID());
+        assertNull(cache.lookup(99));
+        assertNull(cache.lookup(201));
+    }
+
+    @Test
+    public void testSuccessorsListGivesExactRanges() {
+        cache.learnSuccessors(node(100), Arrays.asList(node(300), node(8000), node(50)));
+
+        assertEquals(300, cache.lookup(101).getID());
+        assertEquals(8000, cache.lookup(301).getID());
+        // range of 50 wraps around zero
+        assertEquals(50, cache.lookup(8100).getID());
+        assertEquals(50, cache.lookup(10).getID());
+        assertNull(cache.lookup(100));
+    }
+
+    @Test
+    public void testSuccessorsListDropsDepartedNodes() {
+        cache.learnOwner(150, node(200));
+        cache.learnSuccessors(node(100), Arrays.asList(node(300)));
+
+        assertEquals(300, cache.lookup(150).getID());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.learnOwner(100, node(200));
+        cache.invalidate(node(200));
+
+        assertNull(cache.lookup(150));
+    }
+
+    @Test
+    public void testSuccessorsFollowKnownChain() {
+        cache.learnSuccessors(node(100), Arrays.asList(node(300), node(8000), node(50)));
+
+        assertEquals(Arrays.asList(node(300), node(8000)), cache.successors(node(100), 2));
+        // 100 itself is not known to follow 50, so the chain stops there
+        assertEquals(Arrays.asList(node(8000), node(50)), cache.successors(node(300), 5));
+    }
+}